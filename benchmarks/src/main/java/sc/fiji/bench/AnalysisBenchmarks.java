@@ -0,0 +1,160 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji.bench;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import sc.fiji.ResultsCsv;
+import sc.fiji.SegmentStore;
+import sc.fiji.TraceAnalysis;
+
+
+/**
+ * AnalysisBenchmarks.java
+ * Purpose: throughput and allocation rate of the phase classification, the run statistics and the CSV output on
+ * synthetic traces of 10 to 100,000 vertices
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmarks {
+
+
+	private static final double XSCALE = 0.08;
+	private static final double YSCALE = 2.5;
+	private static final double PAUSEANGLE = 3;
+
+
+	@Param({"10", "1000", "100000"})
+	public int vertices;
+
+
+	private int[] x;
+	private int[] y;
+	private SegmentStore store;
+	private StringBuilder rows;
+	private byte[] phase;
+
+
+	/**
+	 * Build a reproducible trace: growth, shrink and pause segments of random length, always going down in time.
+	 *
+	 * @return void.
+	 */
+	@Setup
+	public void setup() {
+		SplittableRandom random = new SplittableRandom(42);
+		x = new int[vertices];
+		y = new int[vertices];
+		x[0] = 500;
+		y[0] = 0;
+		for (int i=1; i<vertices; i++) {
+			int dy = 1 + random.nextInt(20);
+			int dx;
+			switch (random.nextInt(3)) {
+				case 0: dx = 1 + random.nextInt(10);
+					break;
+				case 1: dx = -1 - random.nextInt(30);
+					break;
+				default: dx = 0;
+			}
+			x[i] = Math.max(0, Math.min(1000, x[i-1] + dx));
+			y[i] = y[i-1] + dy;
+		}
+		store = new SegmentStore();
+		rows = new StringBuilder();
+		phase = new byte[vertices];
+		TraceAnalysis.analyze(x, y, vertices, TraceAnalysis.RIGHT, XSCALE, YSCALE, PAUSEANGLE, store);
+	}
+
+	/**
+	 * Classify every segment of the trace.
+	 *
+	 * @param bh consumes the phases.
+	 *
+	 * @return void.
+	 */
+	@Benchmark
+	public void getPhase(Blackhole bh) {
+		for (int i=0; i<vertices-1; i++) {
+			bh.consume(TraceAnalysis.getPhase(x[i], y[i], x[i+1], y[i+1], TraceAnalysis.RIGHT, PAUSEANGLE));
+		}
+	}
+
+	/**
+	 * Classify every segment of the trace with the batch classifier.
+	 *
+	 * @return the phases.
+	 */
+	@Benchmark
+	public byte[] phases() {
+		return TraceAnalysis.phases(x, y, 0, vertices-1, TraceAnalysis.RIGHT, PAUSEANGLE, phase);
+	}
+
+	/**
+	 * Full analysis of the trace into a reused store, as done by calculate() after a redraw.
+	 *
+	 * @return the store.
+	 */
+	@Benchmark
+	public SegmentStore calculate() {
+		TraceAnalysis.analyze(x, y, vertices, TraceAnalysis.RIGHT, XSCALE, YSCALE, PAUSEANGLE, store);
+		return store;
+	}
+
+	/**
+	 * Format the analyzed trace into a reused row buffer, as done by output().
+	 *
+	 * @return the length of the rows.
+	 */
+	@Benchmark
+	public int output() {
+		rows.setLength(0);
+		ResultsCsv.appendTrace(rows, "bench", store);
+		return rows.length();
+	}
+
+	/**
+	 * Runs the suite with the gc profiler, so each result comes with its allocation rate. Any JMH command line
+	 * option can be given, e.g. a benchmark name pattern or -p vertices=1000.
+	 *
+	 * @param args JMH command line options.
+	 *
+	 * @return void.
+	 */
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions options = new CommandLineOptions(args);
+		OptionsBuilder builder = new OptionsBuilder();
+		builder.parent(options).addProfiler(GCProfiler.class);
+		if (options.getIncludes().isEmpty()) builder.include(AnalysisBenchmarks.class.getSimpleName());
+		new Runner(builder.build()).run();
+	}
+}
@@ -0,0 +1,120 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+
+/**
+ * Bootstrap.java
+ * Purpose: percentile bootstrap confidence intervals of the pooled catastrophe and rescue frequencies of a group.
+ * Each resample draws tracks with replacement, each with all of its runs, since the runs of a track are not
+ * independent of each other; the frequencies are the pooled ratios of the drawn runs. Resamples are drawn in
+ * parallel blocks, each with its own random stream split from the seed in a fixed order, so the intervals only
+ * depend on the seed, never on the number of threads.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class Bootstrap {
+
+
+	public static final long DEFAULT_SEED = 12345L;
+	// resamples drawn by one task
+	private static final int BLOCK = 256;
+
+
+	private Bootstrap() {}
+
+	/**
+	 * Confidence intervals of the catastrophe and rescue frequencies of a group aggregated with keepRuns.
+	 *
+	 * @param g the group.
+	 * @param resamples the number of resamples.
+	 * @param level the confidence level, e.g. 0.95.
+	 * @param seed the seed of the random streams.
+	 * @param threads the number of worker threads.
+	 *
+	 * @return the low and high bounds of the catastrophe frequency, then of the rescue frequency (1/s), NaN if a
+	 * frequency has no defined value in the resamples.
+	 */
+	public static double[] frequencyIntervals(ResultsAggregator.Group g, int resamples, double level, long seed,
+			int threads) {
+		ResultsAggregator.Tracks tracks = g.tracks;
+		if (tracks == null) throw new IllegalArgumentException("The runs of the group were not kept");
+		double[] catastrophe = new double[resamples];
+		double[] rescue = new double[resamples];
+		if (tracks.numTracks == 0) {
+			Arrays.fill(catastrophe, Double.NaN);
+			Arrays.fill(rescue, Double.NaN);
+		}
+		else {
+			int blocks = (resamples + BLOCK - 1) / BLOCK;
+			SplittableRandom root = new SplittableRandom(seed);
+			SplittableRandom[] streams = new SplittableRandom[blocks];
+			for (int b=0; b<blocks; b++) streams[b] = root.split();
+			ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+			try {
+				pool.submit(() -> IntStream.range(0, blocks).parallel().forEach(b -> {
+					SplittableRandom random = streams[b];
+					for (int k=b*BLOCK; k<Math.min(resamples, (b + 1) * BLOCK); k++) {
+						resample(tracks, random, catastrophe, rescue, k);
+					}
+				})).join();
+			} finally {
+				pool.shutdown();
+			}
+		}
+		double alpha = (1 - level) / 2;
+		double[] c = percentiles(catastrophe, alpha);
+		double[] r = percentiles(rescue, alpha);
+		return new double[] {c[0], c[1], r[0], r[1]};
+	}
+
+	/**
+	 * Draw one resample and store its frequencies at index k.
+	 */
+	private static void resample(ResultsAggregator.Tracks tracks, SplittableRandom random, double[] catastrophe,
+			double[] rescue, int k) {
+		double[] sums = tracks.sums;
+		int n = tracks.numTracks;
+		double tGrowth = 0;
+		double tShrink = 0;
+		double catastrophes = 0;
+		double rescues = 0;
+		for (int i=0; i<n; i++) {
+			int t = 4 * random.nextInt(n);
+			tGrowth += sums[t];
+			tShrink += sums[t+1];
+			catastrophes += sums[t+2];
+			rescues += sums[t+3];
+		}
+		catastrophe[k] = (tGrowth > 0) ? catastrophes / tGrowth : Double.NaN;
+		rescue[k] = (tShrink > 0) ? rescues / tShrink : Double.NaN;
+	}
+
+	/**
+	 * @return the alpha and 1 - alpha quantiles of the defined values, linearly interpolated.
+	 */
+	private static double[] percentiles(double[] values, double alpha) {
+		int n = 0;
+		for (double v : values) {
+			if (!Double.isNaN(v)) values[n++] = v;
+		}
+		if (n == 0) return new double[] {Double.NaN, Double.NaN};
+		Arrays.sort(values, 0, n);
+		return new double[] {quantile(values, n, alpha), quantile(values, n, 1 - alpha)};
+	}
+
+	private static double quantile(double[] sorted, int n, double q) {
+		double pos = q * (n - 1);
+		int i = (int) Math.floor(pos);
+		if (i >= n - 1) return sorted[n - 1];
+		return sorted[i] + (pos - i) * (sorted[i + 1] - sorted[i]);
+	}
+}
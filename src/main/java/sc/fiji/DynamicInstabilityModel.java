@@ -0,0 +1,245 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+
+/**
+ * DynamicInstabilityModel.java
+ * Purpose: maximum likelihood fit of a continuous-time Markov model of dynamic instability over many traces. The
+ * states are growth, shrink and pause; a catastrophe is the growth to shrink transition and a rescue the shrink
+ * to growth one. Within a state the tip moves with a constant velocity plus diffusion, so a segment of duration t
+ * moves a signed distance d ~ N(v t, D t). The states of the segments are observed, so the likelihood splits into
+ * transitions and movement, and both are maximized in closed form from sums kept in primitive arrays:
+ * the rate from state i to j is the number of i to j transitions over the time spent in i (the time of the last
+ * state of a trace is censored and counts as time without a transition), v is the distance over the time, and D
+ * is the mean of (d - v t)^2 / t. Undefined segments (not going down in time) break a trace: no transition is
+ * counted across them.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class DynamicInstabilityModel {
+
+
+	public static final int STATES = 3;
+	public static final String[] STATE_NAMES = {"Growth", "Shrink", "Pause"};
+
+	public static final String HEADER = "State, Segments, Time(s), Velocity(um/s), Diffusion(um^2/s), "
+		+ "To growth, To shrink, To pause, Rate to growth(1/s), Rate to shrink(1/s), Rate to pause(1/s), "
+		+ "SE rate to growth(1/s), SE rate to shrink(1/s), SE rate to pause(1/s)";
+
+	// traces added in one task by fit()
+	private static final int BLOCK = 256;
+
+
+	private long traces;
+	// by state: number of segments, time (s), distance (um), sum of d^2 / t and of log t
+	private final long[] segments = new long[STATES];
+	private final double[] time = new double[STATES];
+	private final double[] dist = new double[STATES];
+	private final double[] dist2 = new double[STATES];
+	private final double[] logTime = new double[STATES];
+	// transitions from i to j at i * STATES + j
+	private final long[] transitions = new long[STATES * STATES];
+
+
+	/**
+	 * Fit the model to traces, in parallel. The traces are split into blocks in a fixed order and the blocks are
+	 * merged in that order, so the fit does not depend on the number of threads.
+	 *
+	 * @param traces the traces.
+	 * @param xscale um per pixel.
+	 * @param yscale second per pixel.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 * @param threads the number of worker threads.
+	 *
+	 * @return the model.
+	 */
+	public static DynamicInstabilityModel fit(List<Trace> traces, double xscale, double yscale, double pauseAngle,
+			int threads) {
+		int blocks = (traces.size() + BLOCK - 1) / BLOCK;
+		DynamicInstabilityModel[] parts = new DynamicInstabilityModel[blocks];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.submit(() -> IntStream.range(0, blocks).parallel().forEach(b -> {
+				DynamicInstabilityModel part = new DynamicInstabilityModel();
+				SegmentStore store = new SegmentStore();
+				for (int k=b*BLOCK; k<Math.min(traces.size(), (b + 1) * BLOCK); k++) {
+					Trace t = traces.get(k);
+					TraceAnalysis.analyze(t.x, t.y, t.n, t.side, xscale, yscale, pauseAngle, store);
+					part.add(store, t.side, xscale);
+				}
+				parts[b] = part;
+			})).join();
+		} finally {
+			pool.shutdown();
+		}
+		DynamicInstabilityModel model = new DynamicInstabilityModel();
+		for (DynamicInstabilityModel part : parts) model.merge(part);
+		return model;
+	}
+
+	/**
+	 * Add the segments of an analyzed trace. The distance of a segment is its signed displacement towards the
+	 * growing side, and away from it in shrink, so a pause that drifts back and forth averages out rather than
+	 * adding up to a velocity.
+	 *
+	 * @param store the trace.
+	 * @param side LEFT or RIGHT, the side the microtubule grows towards.
+	 * @param xscale um per pixel.
+	 *
+	 * @return void.
+	 */
+	public void add(SegmentStore store, int side, double xscale) {
+		int m = store.numSegments();
+		if (m == 0) return;
+		traces++;
+		byte[] phase = store.phase;
+		double[] t = store.time;
+		int[] x = store.x;
+		double grow = (side == TraceAnalysis.RIGHT) ? xscale : -xscale;
+		int previous = TraceAnalysis.UNDEFINED;
+		for (int i=0; i<m; i++) {
+			int p = phase[i];
+			if (p == TraceAnalysis.UNDEFINED || t[i] <= 0) {
+				previous = TraceAnalysis.UNDEFINED;
+				continue;
+			}
+			double d = (x[i+1] - x[i]) * grow;
+			if (p == TraceAnalysis.SHRINK) d = -d;
+			segments[p]++;
+			time[p] += t[i];
+			dist[p] += d;
+			dist2[p] += d * d / t[i];
+			logTime[p] += Math.log(t[i]);
+			if (previous != TraceAnalysis.UNDEFINED && previous != p) transitions[previous * STATES + p]++;
+			previous = p;
+		}
+	}
+
+	/**
+	 * Add the traces of another model.
+	 *
+	 * @param other the model.
+	 *
+	 * @return void.
+	 */
+	public void merge(DynamicInstabilityModel other) {
+		traces += other.traces;
+		for (int i=0; i<STATES; i++) {
+			segments[i] += other.segments[i];
+			time[i] += other.time[i];
+			dist[i] += other.dist[i];
+			dist2[i] += other.dist2[i];
+			logTime[i] += other.logTime[i];
+		}
+		for (int k=0; k<transitions.length; k++) {
+			transitions[k] += other.transitions[k];
+		}
+	}
+
+	public long traces() {
+		return traces;
+	}
+
+	public long segments(int state) {
+		return segments[state];
+	}
+
+	public double time(int state) {
+		return time[state];
+	}
+
+	public long transitions(int from, int to) {
+		return transitions[from * STATES + to];
+	}
+
+	/**
+	 * @return the transition rate (1/s), e.g. the catastrophe frequency from GROWTH to SHRINK; NaN without time in
+	 * the state.
+	 */
+	public double rate(int from, int to) {
+		if (from == to || time[from] <= 0) return Double.NaN;
+		return transitions[from * STATES + to] / time[from];
+	}
+
+	/**
+	 * @return the asymptotic standard error of the rate (1/s), rate / sqrt(transitions).
+	 */
+	public double rateError(int from, int to) {
+		long n = transitions[from * STATES + to];
+		return (n > 0) ? rate(from, to) / Math.sqrt(n) : Double.NaN;
+	}
+
+	/**
+	 * @return the velocity (um/s) of the state, away from the start for growth and towards it for shrink, and the
+	 * drift towards the growing side for pause.
+	 */
+	public double velocity(int state) {
+		return (time[state] > 0) ? dist[state] / time[state] : Double.NaN;
+	}
+
+	/**
+	 * @return the diffusion (um^2/s) of the tip around the velocity of the state.
+	 */
+	public double diffusion(int state) {
+		if (segments[state] == 0) return Double.NaN;
+		double v = velocity(state);
+		// sum of (d - v t)^2 / t
+		double residual = dist2[state] - 2 * v * dist[state] + v * v * time[state];
+		return Math.max(residual, 0) / segments[state];
+	}
+
+	/**
+	 * @return the maximized log-likelihood of the transitions and movements of all traces.
+	 */
+	public double logLikelihood() {
+		double ll = 0;
+		for (int i=0; i<STATES; i++) {
+			for (int j=0; j<STATES; j++) {
+				long n = transitions[i * STATES + j];
+				// the exit rate times the time in the state is the number of exits
+				if (n > 0) ll += n * Math.log(rate(i, j)) - n;
+			}
+			double diffusion = diffusion(i);
+			if (segments[i] > 0 && diffusion > 0) {
+				ll -= 0.5 * (segments[i] * (Math.log(2 * Math.PI * diffusion) + 1) + logTime[i]);
+			}
+		}
+		return ll;
+	}
+
+	/**
+	 * Append one row per state, in the columns of HEADER, "-" for undefined values.
+	 *
+	 * @param o the buffer.
+	 *
+	 * @return void.
+	 */
+	public void appendRows(StringBuilder o) {
+		for (int i=0; i<STATES; i++) {
+			o.append(STATE_NAMES[i]).append(',').append(segments[i]).append(',').append(time[i]);
+			o.append(',').append(number(velocity(i))).append(',').append(number(diffusion(i)));
+			for (int j=0; j<STATES; j++) {
+				o.append(',').append((i == j) ? "-" : String.valueOf(transitions(i, j)));
+			}
+			for (int j=0; j<STATES; j++) {
+				o.append(',').append(number(rate(i, j)));
+			}
+			for (int j=0; j<STATES; j++) {
+				o.append(',').append(number(rateError(i, j)));
+			}
+			o.append('\n');
+		}
+	}
+
+	private static String number(double v) {
+		return Double.isNaN(v) ? "-" : String.valueOf(v);
+	}
+}
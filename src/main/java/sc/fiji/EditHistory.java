@@ -0,0 +1,177 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+
+/**
+ * EditHistory.java
+ * Purpose: multi-level undo/redo of a traced polyline. Each step keeps only the vertices an edit replaced and the
+ * ones it put in, so recording a step costs the size of the edit, never a copy of the trace; undoing it gives back
+ * a polyline that differs from the current one in just that range, so only the runs around it are recomputed.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class EditHistory {
+
+
+	// steps kept for undo
+	private static final int MAX_STEPS = 500;
+	// repeated moves of the same vertices within this time are one step, e.g. a drag
+	private static final long MERGE_NANOS = 1000000000L;
+
+
+	private final ArrayDeque<Step> undo = new ArrayDeque<Step>();
+	private final ArrayDeque<Step> redo = new ArrayDeque<Step>();
+
+
+	/**
+	 * Record an edit: vertices [from, toOld) of the old polyline b were replaced by vertices [from, to) of the new
+	 * polyline c. Edits made while a polyline is still being drawn are gathered into one step.
+	 *
+	 * @param from the first changed vertex.
+	 * @param toOld the end of the replaced vertices (exclusive).
+	 * @param to the end of the new vertices (exclusive).
+	 * @param bx the x coordinates of the old polyline.
+	 * @param by the y coordinates of the old polyline.
+	 * @param cx the x coordinates of the new polyline.
+	 * @param cy the y coordinates of the new polyline.
+	 * @param drawing true if the polyline is still being drawn.
+	 *
+	 * @return void.
+	 */
+	public void record(int from, int toOld, int to, int[] bx, int[] by, int[] cx, int[] cy, boolean drawing) {
+		redo.clear();
+		long now = System.nanoTime();
+		Step top = undo.peekLast();
+		boolean drag = top != null && top.from == from && top.newX.length == to - from && toOld - from == to - from
+			&& now - top.time < MERGE_NANOS;
+		if (top != null && (top.open || drag)) {
+			// one step from the state before top to the new state, through the old polyline b
+			int lo = Math.min(top.from, from);
+			int hi = Math.max(top.from + top.newX.length, toOld);
+			int[] oldX = new int[(top.from - lo) + top.oldX.length + (hi - top.from - top.newX.length)];
+			int[] oldY = new int[oldX.length];
+			int k = 0;
+			for (int i=lo; i<top.from; i++, k++) {
+				oldX[k] = bx[i];
+				oldY[k] = by[i];
+			}
+			System.arraycopy(top.oldX, 0, oldX, k, top.oldX.length);
+			System.arraycopy(top.oldY, 0, oldY, k, top.oldY.length);
+			k += top.oldX.length;
+			for (int i=top.from + top.newX.length; i<hi; i++, k++) {
+				oldX[k] = bx[i];
+				oldY[k] = by[i];
+			}
+			int hiNew = hi + (to - toOld);
+			undo.pollLast();
+			undo.addLast(new Step(lo, oldX, oldY, Arrays.copyOfRange(cx, lo, hiNew), Arrays.copyOfRange(cy, lo, hiNew),
+				drawing, now));
+			return;
+		}
+		undo.addLast(new Step(from, Arrays.copyOfRange(bx, from, toOld), Arrays.copyOfRange(by, from, toOld),
+			Arrays.copyOfRange(cx, from, to), Arrays.copyOfRange(cy, from, to), drawing, now));
+		if (undo.size() > MAX_STEPS) undo.pollFirst();
+	}
+
+	/**
+	 * Record that a whole polyline was discarded, so it can be brought back.
+	 *
+	 * @param x the x coordinates of the polyline.
+	 * @param y the y coordinates of the polyline.
+	 * @param n the number of vertices.
+	 *
+	 * @return void.
+	 */
+	public void discarded(int[] x, int[] y, int n) {
+		redo.clear();
+		undo.addLast(new Step(0, Arrays.copyOf(x, n), Arrays.copyOf(y, n), new int[0], new int[0], false,
+			System.nanoTime()));
+		if (undo.size() > MAX_STEPS) undo.pollFirst();
+	}
+
+	/**
+	 * Undo the last step.
+	 *
+	 * @param x the x coordinates of the current polyline.
+	 * @param y the y coordinates of the current polyline.
+	 * @param n the number of vertices.
+	 *
+	 * @return the x and y coordinates of the polyline before the step, or null if there is nothing to undo.
+	 */
+	public int[][] undo(int[] x, int[] y, int n) {
+		Step s = undo.pollLast();
+		if (s == null) return null;
+		redo.addLast(s);
+		return splice(x, y, n, s.from, s.newX.length, s.oldX, s.oldY);
+	}
+
+	/**
+	 * Redo the last undone step.
+	 *
+	 * @param x the x coordinates of the current polyline.
+	 * @param y the y coordinates of the current polyline.
+	 * @param n the number of vertices.
+	 *
+	 * @return the x and y coordinates of the polyline after the step, or null if there is nothing to redo.
+	 */
+	public int[][] redo(int[] x, int[] y, int n) {
+		Step s = redo.pollLast();
+		if (s == null) return null;
+		undo.addLast(s);
+		return splice(x, y, n, s.from, s.oldX.length, s.newX, s.newY);
+	}
+
+	/**
+	 * Forget all steps, e.g. when another image is analyzed.
+	 *
+	 * @return void.
+	 */
+	public void clear() {
+		undo.clear();
+		redo.clear();
+	}
+
+	private static int[][] splice(int[] x, int[] y, int n, int from, int removed, int[] sx, int[] sy) {
+		int size = n - removed + sx.length;
+		int[] rx = new int[size];
+		int[] ry = new int[size];
+		System.arraycopy(x, 0, rx, 0, from);
+		System.arraycopy(y, 0, ry, 0, from);
+		System.arraycopy(sx, 0, rx, from, sx.length);
+		System.arraycopy(sy, 0, ry, from, sy.length);
+		System.arraycopy(x, from + removed, rx, from + sx.length, n - from - removed);
+		System.arraycopy(y, from + removed, ry, from + sx.length, n - from - removed);
+		return new int[][] {rx, ry};
+	}
+
+	/**
+	 * Vertices [from, from + oldX.length) of the polyline before the step became [from, from + newX.length).
+	 */
+	private static final class Step {
+		final int from;
+		final int[] oldX;
+		final int[] oldY;
+		final int[] newX;
+		final int[] newY;
+		// still being drawn, later edits join this step
+		final boolean open;
+		final long time;
+
+		Step(int from, int[] oldX, int[] oldY, int[] newX, int[] newY, boolean open, long time) {
+			this.from = from;
+			this.oldX = oldX;
+			this.oldY = oldY;
+			this.newX = newX;
+			this.newY = newY;
+			this.open = open;
+			this.time = time;
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * EditJournal.java
+ * Purpose: append-only journal of the traced vertices, so a tracing session survives a crash. Edits are encoded on
+ * the calling thread and written in batches by a background thread; the journal is rewritten as a snapshot of the
+ * current trace once it holds enough edits.
+ *
+ * Each image has its own journal, held with a lock on a file next to it, so another Fiji instance tracing the same
+ * image does not write to it. A journal is acquired, its previous content recovered, and only then started afresh.
+ *
+ * Each record is framed by its length and CRC32, so a record torn by a crash is ignored on replay:
+ * <pre>
+ * RESET  side, image title      a new trace
+ * EDIT   from, toOld, count, count x (x, y)   vertices [from, toOld) replaced by count vertices
+ * SAVED                          the trace so far has been saved
+ * </pre>
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class EditJournal {
+
+
+	private static final int MAGIC = 0x4D4B4A31; // "MKJ1"
+	private static final byte RESET = 1;
+	private static final byte EDIT = 2;
+	private static final byte SAVED = 3;
+	// compact once this many records were written since the last snapshot
+	private static final int COMPACT_RECORDS = 1024;
+	// lock files held by this JVM: closing a second channel to one would release the lock of the first
+	private static final Set<String> HELD = ConcurrentHashMap.newKeySet();
+
+
+	private final File file;
+	private final File lockFile;
+	private final FileChannel lockChannel;
+	private final ExecutorService writer;
+	private final Object lock = new Object();
+	// encoded records not written yet, guarded by lock
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private boolean flushScheduled;
+	// journal state, only used by the writer thread
+	private OutputStream out;
+	private final Session state = new Session();
+	private int records;
+
+
+	private EditJournal(File file, File lockFile, FileChannel lockChannel) {
+		this.file = file;
+		this.lockFile = lockFile;
+		this.lockChannel = lockChannel;
+		this.writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "Microtubule Kymograph Journal");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Take the journal of an image for this instance. The file is left as it is until start().
+	 *
+	 * @param dir the directory of the journals, created if needed.
+	 * @param title the title of the image.
+	 *
+	 * @return the journal, or null if another instance holds it.
+	 */
+	public static EditJournal acquire(File dir, String title) throws IOException {
+		Files.createDirectories(dir.toPath());
+		String name = title.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(title.hashCode());
+		File file = new File(dir, name + ".journal");
+		File lockFile = new File(dir, name + ".lock");
+		if (!HELD.add(lockFile.getAbsolutePath())) return null;
+		try {
+			while (true) {
+				FileChannel ch = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+				FileLock lock;
+				try {
+					lock = ch.tryLock();
+				} catch (OverlappingFileLockException | IOException e) {
+					ch.close();
+					throw e;
+				}
+				if (lock == null) {
+					ch.close();
+					HELD.remove(lockFile.getAbsolutePath());
+					return null;
+				}
+				// the holder deletes the lock file before releasing it, so a lock on a deleted file is stale
+				if (lockFile.exists()) return new EditJournal(file, lockFile, ch);
+				ch.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			HELD.remove(lockFile.getAbsolutePath());
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the trace of the previous session of the image, or null if there is no readable journal.
+	 */
+	public Session recover() {
+		return recover(file);
+	}
+
+	/**
+	 * Start writing, replacing the previous content of the journal.
+	 *
+	 * @return void.
+	 */
+	public void start() throws IOException {
+		out = open(file, false);
+	}
+
+	/**
+	 * Record the start of a new trace.
+	 *
+	 * @param side TraceAnalysis.LEFT or TraceAnalysis.RIGHT.
+	 * @param title the title of the image.
+	 *
+	 * @return void.
+	 */
+	public void reset(int side, String title) {
+		Record r = new Record(RESET);
+		r.writeInt(side);
+		r.writeString(title == null ? "" : title);
+		enqueue(r);
+	}
+
+	/**
+	 * Record a vertex edit: vertices [from, toOld) are replaced by x[from, to), y[from, to).
+	 *
+	 * @param from the first changed vertex.
+	 * @param toOld the end of the replaced vertices (exclusive).
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices.
+	 * @param to the end of the new vertices (exclusive).
+	 *
+	 * @return void.
+	 */
+	public void edit(int from, int toOld, int[] x, int[] y, int to) {
+		Record r = new Record(EDIT);
+		r.writeInt(from);
+		r.writeInt(toOld);
+		r.writeInt(to - from);
+		for (int i=from; i<to; i++) {
+			r.writeInt(x[i]);
+			r.writeInt(y[i]);
+		}
+		enqueue(r);
+	}
+
+	/**
+	 * Record that the current trace has been saved, so it is not offered for recovery.
+	 *
+	 * @return void.
+	 */
+	public void saved() {
+		enqueue(new Record(SAVED));
+	}
+
+	/**
+	 * Write the pending records, stop and release the journal. The journal is deleted if requested, after a clean
+	 * exit.
+	 *
+	 * @param delete true to delete the journal.
+	 *
+	 * @return void.
+	 */
+	public void close(boolean delete) {
+		writer.submit(() -> {
+			flush();
+			try {
+				if (out != null) out.close();
+				if (delete) {
+					Files.deleteIfExists(file.toPath());
+					Files.deleteIfExists(lockFile.toPath());
+				}
+				lockChannel.close();
+			} catch (IOException e) {
+				// nothing left to recover from
+			} finally {
+				HELD.remove(lockFile.getAbsolutePath());
+			}
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void enqueue(Record r) {
+		synchronized (lock) {
+			r.frameTo(pending);
+			if (flushScheduled) return;
+			flushScheduled = true;
+		}
+		try {
+			writer.execute(this::flush);
+		} catch (RuntimeException e) {
+			// closed
+		}
+	}
+
+	/**
+	 * Write all pending records at once. Runs on the writer thread.
+	 */
+	private void flush() {
+		byte[] batch;
+		synchronized (lock) {
+			flushScheduled = false;
+			if (pending.size() == 0 || out == null) return;
+			batch = pending.toByteArray();
+			pending.reset();
+		}
+		try {
+			out.write(batch);
+			out.flush();
+			records += replay(new DataInputStream(new ByteArrayInputStream(batch)), batch.length, state);
+			if (records >= COMPACT_RECORDS) compact();
+		} catch (IOException e) {
+			// the journal is only a safety net, tracing goes on without it
+		}
+	}
+
+	/**
+	 * Replace the journal with a snapshot of the current trace.
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (OutputStream o = open(tmp, false)) {
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			Record reset = new Record(RESET);
+			reset.writeInt(state.side);
+			reset.writeString(state.title);
+			reset.frameTo(b);
+			Record edit = new Record(EDIT);
+			edit.writeInt(0);
+			edit.writeInt(0);
+			edit.writeInt(state.n);
+			for (int i=0; i<state.n; i++) {
+				edit.writeInt(state.x[i]);
+				edit.writeInt(state.y[i]);
+			}
+			edit.frameTo(b);
+			if (state.saved) new Record(SAVED).frameTo(b);
+			b.writeTo(o);
+		}
+		out.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		out = open(file, true);
+		records = 0;
+	}
+
+	private static OutputStream open(File file, boolean append) throws IOException {
+		FileOutputStream o = new FileOutputStream(file, append);
+		if (!append) {
+			DataOutputStream d = new DataOutputStream(o);
+			d.writeInt(MAGIC);
+			d.flush();
+		}
+		return o;
+	}
+
+	/**
+	 * Rebuild the last trace of a journal.
+	 *
+	 * @param file the journal.
+	 *
+	 * @return the trace, or null if there is no readable journal.
+	 */
+	private static Session recover(File file) {
+		if (!file.isFile()) return null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) return null;
+			Session s = new Session();
+			replay(in, file.length() - 4, s);
+			return s;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Apply the complete records of a stream to a session, up to the first torn or corrupt one. A record cannot be
+	 * longer than what is left of the stream, so a corrupt length never allocates more than the file holds.
+	 *
+	 * @param in the records.
+	 * @param remaining the number of bytes left in the stream.
+	 * @param s the session.
+	 *
+	 * @return the number of records applied.
+	 */
+	private static int replay(DataInputStream in, long remaining, Session s) throws IOException {
+		int count = 0;
+		CRC32 crc = new CRC32();
+		byte[] payload = new byte[64];
+		while (true) {
+			int length;
+			long checksum;
+			try {
+				length = in.readInt();
+				checksum = in.readInt() & 0xFFFFFFFFL;
+				remaining -= 8;
+				if (length < 1 || length > remaining) return count;
+				remaining -= length;
+				if (payload.length < length) payload = new byte[Math.max(length, 2 * payload.length)];
+				in.readFully(payload, 0, length);
+			} catch (EOFException e) {
+				return count;
+			}
+			crc.reset();
+			crc.update(payload, 0, length);
+			if (crc.getValue() != checksum) return count;
+			try {
+				s.apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+			} catch (IOException e) {
+				return count;
+			}
+			count++;
+		}
+	}
+
+	/**
+	 * A record being encoded, big-endian like DataInput reads it.
+	 */
+	private static final class Record {
+		private final ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+
+		Record(byte type) {
+			payload.write(type);
+		}
+
+		void writeInt(int v) {
+			writeInt(payload, v);
+		}
+
+		void writeString(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeInt(bytes.length);
+			payload.write(bytes, 0, bytes.length);
+		}
+
+		void frameTo(ByteArrayOutputStream o) {
+			byte[] bytes = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length);
+			writeInt(o, bytes.length);
+			writeInt(o, (int) crc.getValue());
+			o.write(bytes, 0, bytes.length);
+		}
+
+		private static void writeInt(ByteArrayOutputStream o, int v) {
+			o.write(v >>> 24);
+			o.write(v >>> 16);
+			o.write(v >>> 8);
+			o.write(v);
+		}
+	}
+
+	/**
+	 * The trace rebuilt from a journal.
+	 */
+	public static final class Session {
+		public int side = TraceAnalysis.RIGHT;
+		public String title = "";
+		public int[] x = new int[16];
+		public int[] y = new int[16];
+		public int n;
+		// true if nothing was traced since the last save
+		public boolean saved = true;
+
+		private void apply(DataInputStream in) throws IOException {
+			switch (in.readByte()) {
+				case RESET:
+					side = in.readInt();
+					int length = in.readInt();
+					if (length < 0 || length > in.available()) throw new IOException("Invalid title");
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					title = new String(bytes, StandardCharsets.UTF_8);
+					n = 0;
+					saved = true;
+					break;
+				case EDIT:
+					int from = in.readInt();
+					int toOld = in.readInt();
+					int count = in.readInt();
+					if (from < 0 || toOld < from || toOld > n || count < 0 || count > in.available() / 8) {
+						throw new IOException("Invalid edit");
+					}
+					int size = n - (toOld - from) + count;
+					if (x.length < size) {
+						x = Arrays.copyOf(x, Math.max(size, 2 * x.length));
+						y = Arrays.copyOf(y, x.length);
+					}
+					System.arraycopy(x, toOld, x, from + count, n - toOld);
+					System.arraycopy(y, toOld, y, from + count, n - toOld);
+					for (int i=from; i<from+count; i++) {
+						x[i] = in.readInt();
+						y[i] = in.readInt();
+					}
+					n = size;
+					saved = false;
+					break;
+				case SAVED:
+					saved = true;
+					break;
+				default:
+					throw new IOException("Unknown record");
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ij.IJ;
+
+
+/**
+ * FileAppender.java
+ * Purpose: append whole records to a shared results file. Producers in this and other processes are serialized with
+ * a file lock, and a record torn by a producer that died while writing is repaired, and logged, before the next one
+ * is appended.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+final class FileAppender {
+
+
+	// a JVM cannot hold two locks on one file, so threads first wait here; a monitor is removed with its last user
+	private static final ConcurrentHashMap<String, Monitor> MONITORS = new ConcurrentHashMap<String, Monitor>();
+
+
+	/**
+	 * Repairs the end of a file torn by a producer that died while writing.
+	 */
+	interface Framing {
+
+		/**
+		 * @param ch the locked, non-empty file.
+		 *
+		 * @return the size of the file once it ends with a complete record.
+		 */
+		long repair(FileChannel ch) throws IOException;
+	}
+
+	/**
+	 * Writes a record at the end of the locked file.
+	 */
+	interface Record {
+
+		/**
+		 * @param ch the locked file.
+		 * @param position the end of the file.
+		 *
+		 * @return the position after the record.
+		 */
+		long writeTo(FileChannel ch, long position) throws IOException;
+	}
+
+	/**
+	 * The threads of this JVM appending to one file.
+	 */
+	private static final class Monitor {
+		int users = 1;
+	}
+
+
+	private FileAppender() {}
+
+	/**
+	 * Append a record to a file under an exclusive lock.
+	 *
+	 * @param file the file, created if needed.
+	 * @param header written first if the file is empty, or null.
+	 * @param record the record.
+	 * @param framing repairs a torn last record.
+	 *
+	 * @return void.
+	 */
+	static void append(File file, ByteBuffer header, ByteBuffer record, Framing framing) throws IOException {
+		append(file, header, (ch, position) -> write(ch, record, position), framing);
+	}
+
+	/**
+	 * Append a record to a file under an exclusive lock, written by the record itself, e.g. in bounded chunks.
+	 *
+	 * @param file the file, created if needed.
+	 * @param header written first if the file is empty, or null.
+	 * @param record writes the record.
+	 * @param framing repairs a torn last record.
+	 *
+	 * @return void.
+	 */
+	static void append(File file, ByteBuffer header, Record record, Framing framing) throws IOException {
+		String path = file.getCanonicalPath();
+		Monitor monitor = MONITORS.compute(path, (k, m) -> {
+			if (m == null) return new Monitor();
+			m.users++;
+			return m;
+		});
+		try {
+			synchronized (monitor) {
+				try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE)) {
+					// released when the channel is closed
+					ch.lock();
+					long end = ch.size();
+					if (end > 0) {
+						long repaired = framing.repair(ch);
+						if (repaired != end) {
+							IJ.log("Repaired the end of " + file.getName() + ": " + end + " to " + repaired + " bytes");
+							end = repaired;
+						}
+					}
+					if (end == 0 && header != null) end = write(ch, header, 0);
+					record.writeTo(ch, end);
+				}
+			}
+		} finally {
+			MONITORS.computeIfPresent(path, (k, m) -> (--m.users == 0) ? null : m);
+		}
+	}
+
+	/**
+	 * Write a buffer at a position.
+	 *
+	 * @param ch the file.
+	 * @param buf the bytes, not consumed.
+	 * @param position where to write them.
+	 *
+	 * @return the position after them.
+	 */
+	static long write(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+		ByteBuffer b = buf.duplicate();
+		while (b.hasRemaining()) position += ch.write(b, position);
+		return position;
+	}
+}
@@ -0,0 +1,259 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.awt.Polygon;
+
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.Line;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+
+
+/**
+ * KymographAnalyzer.java
+ * Purpose: the analysis of the plugin without its window, for scripts, macros and other plugins: polyline vertices
+ * in, segment and run records out. An analyzer holds only its settings and is immutable, so one instance can be
+ * shared by any number of threads. Each thread analyzes into its own reused store, so analyzing many traces
+ * allocates nothing once the store has grown to the longest trace.
+ *
+ * From a macro:
+ * rows = call("sc.fiji.KymographAnalyzer.analyzeSelection", "right", "3");
+ * rows = call("sc.fiji.KymographAnalyzer.analyzeCsv", "10,12,20", "0,15,40", "right", "0.08", "2.5", "3");
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class KymographAnalyzer {
+
+
+	private static final ThreadLocal<SegmentStore> STORE = ThreadLocal.withInitial(SegmentStore::new);
+
+
+	private final int side;
+	private final double xscale;
+	private final double yscale;
+	private final double pauseAngle;
+
+
+	/**
+	 * @param side TraceAnalysis.LEFT or TraceAnalysis.RIGHT, the side of the kymograph the microtubule grows
+	 * towards.
+	 * @param xscale um per pixel.
+	 * @param yscale second per pixel.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 */
+	public KymographAnalyzer(int side, double xscale, double yscale, double pauseAngle) {
+		if (side != TraceAnalysis.LEFT && side != TraceAnalysis.RIGHT) {
+			throw new IllegalArgumentException("Side must be LEFT or RIGHT");
+		}
+		if (!(xscale > 0) || !(yscale > 0)) throw new IllegalArgumentException("Scales must be positive");
+		if (!(pauseAngle >= 0 && pauseAngle < 90)) {
+			throw new IllegalArgumentException("Pause Angle must be within 0 (inclusive) to 90 (exclusive) degree");
+		}
+		this.side = side;
+		this.xscale = xscale;
+		this.yscale = yscale;
+		this.pauseAngle = pauseAngle;
+	}
+
+	/**
+	 * An analyzer with the scales of a kymograph calibrated in microns and seconds, e.g. one made by the kymograph
+	 * builder.
+	 *
+	 * @param imp the kymograph.
+	 * @param side TraceAnalysis.LEFT or TraceAnalysis.RIGHT.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 *
+	 * @return the analyzer.
+	 */
+	public static KymographAnalyzer of(ImagePlus imp, int side, double pauseAngle) {
+		double[] scales = calibratedScales(imp);
+		if (scales == null) {
+			throw new IllegalArgumentException(imp.getTitle() + " is not calibrated in microns and seconds");
+		}
+		return new KymographAnalyzer(side, scales[0], scales[1], pauseAngle);
+	}
+
+	/**
+	 * @param imp a kymograph.
+	 *
+	 * @return the x- and y-scale of the kymograph if it is calibrated in microns and seconds, or null.
+	 */
+	public static double[] calibratedScales(ImagePlus imp) {
+		Calibration cal = imp.getCalibration();
+		String unit = cal.getUnit();
+		boolean microns = unit.equals("\u00B5m") || unit.equals("\u03BCm") || unit.equals("um") || unit.startsWith("micron");
+		boolean seconds = cal.getYUnit().equals("sec") || cal.getYUnit().equals("s");
+		if (!microns || !seconds || cal.pixelWidth <= 0 || cal.pixelHeight <= 0) return null;
+		return new double[] {cal.pixelWidth, cal.pixelHeight};
+	}
+
+	public int getSide() {
+		return side;
+	}
+
+	public double getXScale() {
+		return xscale;
+	}
+
+	public double getYScale() {
+		return yscale;
+	}
+
+	public double getPauseAngle() {
+		return pauseAngle;
+	}
+
+	/**
+	 * Analyze a polyline into a store, replacing its content. Segment i goes from vertex i to i+1; read it with
+	 * store.phase(i), dist(i), time(i) and rate(i), and the pause-delimited runs with store.runStart(r) and
+	 * store.run(r, TraceAnalysis.NUMCAT ... TraceAnalysis.DSHRINK).
+	 *
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices, increasing with time.
+	 * @param n the number of vertices.
+	 * @param store receives the records, owned by the caller.
+	 *
+	 * @return store.
+	 */
+	public SegmentStore analyze(int[] x, int[] y, int n, SegmentStore store) {
+		TraceAnalysis.analyze(x, y, n, side, xscale, yscale, pauseAngle, store);
+		return store;
+	}
+
+	/**
+	 * Analyze a polyline into the store of the calling thread.
+	 *
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices, increasing with time.
+	 * @param n the number of vertices.
+	 *
+	 * @return the records, valid until the next analysis on the same thread.
+	 */
+	public SegmentStore analyze(int[] x, int[] y, int n) {
+		return analyze(x, y, n, STORE.get());
+	}
+
+	/**
+	 * Analyze a straight line or a polyline (segmented line) ROI into a store.
+	 *
+	 * @param roi the trace.
+	 * @param store receives the records, owned by the caller.
+	 *
+	 * @return store.
+	 */
+	public SegmentStore analyze(Roi roi, SegmentStore store) {
+		if (roi instanceof Line) {
+			Line l = (Line) roi;
+			return analyze(new int[] {l.x1, l.x2}, new int[] {l.y1, l.y2}, 2, store);
+		}
+		if (roi == null || roi.getType() != Roi.POLYLINE) {
+			throw new IllegalArgumentException("A straight line or a segmented line is needed");
+		}
+		Polygon p = roi.getPolygon();
+		return analyze(p.xpoints, p.ypoints, p.npoints, store);
+	}
+
+	/**
+	 * Analyze a trace into the store of the calling thread.
+	 *
+	 * @param roi the trace.
+	 *
+	 * @return the records, valid until the next analysis on the same thread.
+	 */
+	public SegmentStore analyze(Roi roi) {
+		return analyze(roi, STORE.get());
+	}
+
+	/**
+	 * Analyze a polyline and append its rows in the format of the plugin's output file.
+	 *
+	 * @param o the buffer.
+	 * @param label the label of the trace, usually the image title.
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices.
+	 * @param n the number of vertices.
+	 *
+	 * @return void.
+	 */
+	public void appendCsv(StringBuilder o, String label, int[] x, int[] y, int n) {
+		ResultsCsv.appendTrace(o, label, analyze(x, y, n));
+	}
+
+	/**
+	 * Macro function: analyze the selection of the current image, with the scales of its calibration if it is
+	 * calibrated in microns and seconds, otherwise with the scales of the plugin's defaults.
+	 *
+	 * @param side "left" or "right".
+	 * @param pauseAngle the pause angle (degree).
+	 *
+	 * @return the output file rows with their header, or an error message starting with "ERROR:".
+	 */
+	public static String analyzeSelection(String side, String pauseAngle) {
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null) return "ERROR: no image";
+		try {
+			double[] scales = calibratedScales(imp);
+			if (scales == null) scales = new double[] {0.08, 2.5};
+			KymographAnalyzer analyzer = new KymographAnalyzer(side(side), scales[0], scales[1],
+				Double.parseDouble(pauseAngle));
+			StringBuilder o = new StringBuilder(ResultsCsv.HEADER).append('\n');
+			ResultsCsv.appendTrace(o, imp.getTitle(), analyzer.analyze(imp.getRoi()));
+			return o.toString();
+		} catch (IllegalArgumentException e) {
+			return "ERROR: " + e.getMessage();
+		}
+	}
+
+	/**
+	 * Macro function: analyze a polyline given as comma separated coordinates.
+	 *
+	 * @param xs the x coordinates, e.g. "10,12,20".
+	 * @param ys the y coordinates.
+	 * @param side "left" or "right".
+	 * @param xscale um per pixel.
+	 * @param yscale second per pixel.
+	 * @param pauseAngle the pause angle (degree).
+	 *
+	 * @return the output file rows with their header, or an error message starting with "ERROR:".
+	 */
+	public static String analyzeCsv(String xs, String ys, String side, String xscale, String yscale,
+			String pauseAngle) {
+		try {
+			int[] x = ints(xs);
+			int[] y = ints(ys);
+			if (x.length != y.length) return "ERROR: as many x as y coordinates are needed";
+			KymographAnalyzer analyzer = new KymographAnalyzer(side(side), Double.parseDouble(xscale),
+				Double.parseDouble(yscale), Double.parseDouble(pauseAngle));
+			StringBuilder o = new StringBuilder(ResultsCsv.HEADER).append('\n');
+			analyzer.appendCsv(o, "trace", x, y, x.length);
+			return o.toString();
+		} catch (IllegalArgumentException e) {
+			return "ERROR: " + e.getMessage();
+		}
+	}
+
+	/**
+	 * @param side "left" or "right", in any case.
+	 *
+	 * @return TraceAnalysis.LEFT or TraceAnalysis.RIGHT.
+	 */
+	static int side(String side) {
+		if (side.trim().equalsIgnoreCase("left")) return TraceAnalysis.LEFT;
+		if (side.trim().equalsIgnoreCase("right")) return TraceAnalysis.RIGHT;
+		throw new IllegalArgumentException("Side must be left or right: " + side);
+	}
+
+	private static int[] ints(String s) {
+		String[] parts = s.split(",");
+		int[] values = new int[parts.length];
+		for (int i=0; i<parts.length; i++) {
+			values[i] = (int) Math.round(Double.parseDouble(parts[i].trim()));
+		}
+		return values;
+	}
+}
@@ -0,0 +1,192 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Line;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+import ij.process.FloatPolygon;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+/**
+ * KymographBuilder.java
+ * Purpose: build a kymograph in memory from a time-lapse stack and a line or polyline ROI, one row per frame (time
+ * axis vertical, as the analysis expects). Frames are read and sampled in parallel, so a virtual stack is streamed
+ * from disk with only a few frames in memory at a time.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class KymographBuilder {
+
+
+	// distance between samples along the line (pixel)
+	private static final double SPACING = 1.0;
+
+
+	private KymographBuilder() {}
+
+	/**
+	 * Build the kymograph of the current channel and z slice of a stack along a line or polyline. Wide lines are
+	 * averaged across their width.
+	 *
+	 * @param imp the time-lapse stack or hyperstack.
+	 * @param roi a straight line or a polyline.
+	 * @param threads the number of frames read and sampled at once.
+	 *
+	 * @return the kymograph, calibrated in microns (or the length unit of the stack if it is not a known one) and
+	 * seconds per row; in frames per row if the frame interval or its time unit is not known.
+	 */
+	public static ImagePlus build(ImagePlus imp, Roi roi, int threads) {
+		float[][] samples = samples(roi);
+		float[] sx = samples[0];
+		float[] sy = samples[1];
+		float[] nx = samples[2];
+		float[] ny = samples[3];
+		int width = sx.length;
+		int lineWidth = Math.max(1, Math.round(roi.getStrokeWidth()));
+		boolean frames = imp.getNFrames() > 1;
+		int height = frames ? imp.getNFrames() : imp.getStackSize();
+		int channel = imp.getChannel();
+		int slice = imp.getSlice();
+		ImageStack stack = imp.getStack();
+
+		float[] pixels = new float[width * height];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.submit(() -> IntStream.range(0, height).parallel().forEach(t -> {
+				int index = frames ? imp.getStackIndex(channel, slice, t + 1) : t + 1;
+				ImageProcessor ip = stack.getProcessor(index);
+				if (ip instanceof ColorProcessor) ip = ip.convertToFloat();
+				int row = t * width;
+				for (int i=0; i<width; i++) {
+					pixels[row + i] = sample(ip, sx[i], sy[i], nx[i], ny[i], lineWidth);
+				}
+			})).join();
+		} finally {
+			pool.shutdown();
+		}
+
+		FloatProcessor fp = new FloatProcessor(width, height, pixels);
+		fp.resetMinAndMax();
+		ImagePlus kymograph = new ImagePlus("Kymograph of " + imp.getShortTitle(), fp);
+		Calibration stackCal = imp.getCalibration();
+		Calibration cal = kymograph.getCalibration();
+		double microns = micronsPer(stackCal.getUnit());
+		if (microns > 0) {
+			cal.setUnit("um");
+			cal.pixelWidth = stackCal.pixelWidth * SPACING * microns;
+		}
+		else {
+			cal.setUnit(stackCal.getUnit());
+			cal.pixelWidth = stackCal.pixelWidth * SPACING;
+		}
+		double seconds = (stackCal.frameInterval > 0) ? secondsPer(stackCal.getTimeUnit()) : 0;
+		cal.pixelHeight = (seconds > 0) ? stackCal.frameInterval * seconds : 1;
+		cal.setYUnit((seconds > 0) ? "sec" : "frame");
+		return kymograph;
+	}
+
+	/**
+	 * @return the microns in one length unit, 0 if it is not a known unit of length.
+	 */
+	private static double micronsPer(String unit) {
+		switch (unit) {
+			case "nm": return 1e-3;
+			case "\u00B5m":
+			case "\u03BCm":
+			case "um":
+			case "micron":
+			case "microns": return 1;
+			case "mm": return 1e3;
+			default: return 0;
+		}
+	}
+
+	/**
+	 * @return the seconds in one time unit, 0 if it is not a known unit of time.
+	 */
+	private static double secondsPer(String unit) {
+		switch (unit) {
+			case "ms":
+			case "msec": return 1e-3;
+			case "s":
+			case "sec": return 1;
+			case "min": return 60;
+			case "h":
+			case "hr":
+			case "hour": return 3600;
+			default: return 0;
+		}
+	}
+
+	/**
+	 * Mean of the interpolated values across the line width, along the normal of the line.
+	 */
+	private static float sample(ImageProcessor ip, float x, float y, float nx, float ny, int lineWidth) {
+		double sum = 0;
+		for (int k=0; k<lineWidth; k++) {
+			double d = k - (lineWidth - 1) / 2.0;
+			sum += ip.getInterpolatedValue(x + d * nx, y + d * ny);
+		}
+		return (float) (sum / lineWidth);
+	}
+
+	/**
+	 * Positions every SPACING pixels along the line, with the unit normal of the line at each of them.
+	 *
+	 * @return x, y, normal x and normal y of the samples.
+	 */
+	private static float[][] samples(Roi roi) {
+		FloatPolygon p;
+		if (roi instanceof Line) {
+			Line l = (Line) roi;
+			p = new FloatPolygon(new float[] {(float) l.x1d, (float) l.x2d},
+				new float[] {(float) l.y1d, (float) l.y2d}, 2);
+		}
+		else if (roi.getType() == Roi.POLYLINE || roi.getType() == Roi.FREELINE) {
+			p = roi.getFloatPolygon();
+		}
+		else {
+			throw new IllegalArgumentException("A straight line or a polyline is needed");
+		}
+		if (p.npoints < 2) throw new IllegalArgumentException("The line needs at least two points");
+		double length = 0;
+		for (int i=1; i<p.npoints; i++) {
+			length += Math.hypot(p.xpoints[i] - p.xpoints[i-1], p.ypoints[i] - p.ypoints[i-1]);
+		}
+		int n = (int) Math.floor(length / SPACING) + 1;
+		float[][] s = new float[4][n];
+		int segment = 1;
+		double start = 0;
+		for (int i=0; i<n; i++) {
+			double d = i * SPACING;
+			double segLength = Math.hypot(p.xpoints[segment] - p.xpoints[segment-1],
+				p.ypoints[segment] - p.ypoints[segment-1]);
+			while (d > start + segLength && segment < p.npoints - 1) {
+				start += segLength;
+				segment++;
+				segLength = Math.hypot(p.xpoints[segment] - p.xpoints[segment-1],
+					p.ypoints[segment] - p.ypoints[segment-1]);
+			}
+			double dx = p.xpoints[segment] - p.xpoints[segment-1];
+			double dy = p.ypoints[segment] - p.ypoints[segment-1];
+			double f = (segLength > 0) ? (d - start) / segLength : 0;
+			s[0][i] = (float) (p.xpoints[segment-1] + f * dx);
+			s[1][i] = (float) (p.ypoints[segment-1] + f * dy);
+			s[2][i] = (segLength > 0) ? (float) (-dy / segLength) : 0;
+			s[3][i] = (segLength > 0) ? (float) (dx / segLength) : 0;
+		}
+		return s;
+	}
+}
@@ -0,0 +1,110 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ij.gui.ImageCanvas;
+import ij.gui.ImageWindow;
+import ij.gui.Line;
+import ij.gui.Overlay;
+import ij.gui.PolygonRoi;
+
+
+/**
+ * KymographSession.java
+ * Purpose: the tracing state of one open kymograph (its trace, side, scales, cached statistics and overlay), so the
+ * plugin can switch between images without recomputing anything. A session not in use is kept compact, and its
+ * cached statistics can be dropped under memory pressure and rebuilt from the trace when it is used again.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+final class KymographSession {
+
+
+	// image
+	String imageDirectory;
+	String savingPath;
+	ImageWindow window;
+	ImageCanvas canvas;
+
+	// settings
+	int side;
+	double xscale;
+	double yscale;
+	double pauseAngle;
+
+	// trace, store is null once evicted
+	Boolean finished;
+	PolygonRoi currentPolyline;
+	SegmentStore store;
+	int[] clickX;
+	int[] clickY;
+	int[] snapX;
+	EditHistory history;
+	RidgeField ridgeField;
+
+	// overlay
+	Overlay overlayRois;
+	boolean overlayValid;
+	ArrayList<Line> staleLines;
+	Line[] overlayLines;
+	int dirtyFrom;
+	int dirtyTo;
+
+	// crash recovery
+	EditJournal journal;
+
+
+	/**
+	 * Release what can be rebuilt cheaply: the ridge field of the pixels and the unused capacity of the arrays.
+	 *
+	 * @return void.
+	 */
+	void compact() {
+		ridgeField = null;
+		if (store == null) return;
+		store.trim();
+		int n = Math.max(store.numVertices(), 16);
+		clickX = Arrays.copyOf(clickX, n);
+		clickY = Arrays.copyOf(clickY, n);
+		snapX = new int[n];
+		if (overlayLines != null) overlayLines = Arrays.copyOf(overlayLines, Math.max(store.numSegments(), 16));
+	}
+
+	/**
+	 * Drop the cached statistics and overlay lines. The trace itself is kept and analyzed again on the next use.
+	 *
+	 * @return void.
+	 */
+	void evict() {
+		store = null;
+		overlayLines = null;
+		overlayValid = false;
+		staleLines.clear();
+		dirtyFrom = dirtyTo = 0;
+		clickX = new int[16];
+		clickY = new int[16];
+		snapX = new int[16];
+	}
+
+	/**
+	 * @return true if the cached statistics were dropped.
+	 */
+	boolean evicted() {
+		return store == null;
+	}
+
+	/**
+	 * @return the approximate memory held by the cached statistics, in bytes.
+	 */
+	long bytes() {
+		if (store == null) return 0;
+		long lines = (overlayLines == null) ? 0 : 200L * store.numSegments();
+		return store.bytes() + 12L * clickX.length + lines;
+	}
+}
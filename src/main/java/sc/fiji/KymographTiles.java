@@ -0,0 +1,232 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.process.ImageProcessor;
+
+
+/**
+ * KymographTiles.java
+ * Purpose: read-only access to the pixels of a kymograph by rows, for the analysis code that reads pixels (snapping
+ * and trace detection). The pixels come either from an image processor, without copying it, or straight from an
+ * uncompressed TIFF file mapped into memory, so a kymograph of any length is paged in by the OS only where it is
+ * read and never takes heap space.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class KymographTiles {
+
+
+	// largest mapping, whole rows, so files beyond 2 GB are mapped in pieces
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+
+	private final int width;
+	private final int height;
+	private final ImageProcessor ip;
+	private final MappedByteBuffer[] chunks;
+	private final int rowsPerChunk;
+	private final int fileType;
+	// calibrated value of each raw 8 or 16-bit value, or null for uncalibrated pixels
+	private final float[] cTable;
+
+
+	private KymographTiles(ImageProcessor ip) {
+		this.width = ip.getWidth();
+		this.height = ip.getHeight();
+		this.ip = ip;
+		this.chunks = null;
+		this.rowsPerChunk = 0;
+		this.fileType = 0;
+		this.cTable = null;
+	}
+
+	private KymographTiles(int width, int height, MappedByteBuffer[] chunks, int rowsPerChunk, int fileType,
+			float[] cTable) {
+		this.width = width;
+		this.height = height;
+		this.ip = null;
+		this.chunks = chunks;
+		this.rowsPerChunk = rowsPerChunk;
+		this.fileType = fileType;
+		this.cTable = cTable;
+	}
+
+	/**
+	 * @param ip the kymograph, time axis vertical.
+	 *
+	 * @return the pixels of the image processor.
+	 */
+	public static KymographTiles of(ImageProcessor ip) {
+		return new KymographTiles(ip);
+	}
+
+	/**
+	 * The pixels of an open kymograph: mapped from its file if it was opened as a virtual stack from an
+	 * uncompressed TIFF, so its pixels are not decoded again, otherwise those of its processor.
+	 *
+	 * @param imp the kymograph.
+	 *
+	 * @return the pixels.
+	 */
+	public static KymographTiles of(ImagePlus imp) {
+		FileInfo info = imp.getOriginalFileInfo();
+		if (imp.getStack().isVirtual() && imp.getStackSize() == 1 && info != null && info.directory != null) {
+			try {
+				KymographTiles mapped = map(new File(info.directory, info.fileName));
+				if (mapped != null && mapped.width == imp.getWidth() && mapped.height == imp.getHeight()) return mapped;
+			} catch (IOException e) {
+				// read the decoded pixels instead
+			}
+		}
+		return of(imp.getProcessor());
+	}
+
+	/**
+	 * Map the first image of a TIFF file.
+	 *
+	 * @param file the TIFF file.
+	 *
+	 * @return the pixels, or null if the image is compressed, not stored in one piece or not grayscale.
+	 */
+	public static KymographTiles map(File file) throws IOException {
+		FileInfo[] infos = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+		if (infos == null || infos.length == 0) return null;
+		FileInfo fi = infos[0];
+		if (fi.compression > FileInfo.COMPRESSION_NONE) return null;
+		int bytesPerPixel;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: bytesPerPixel = 1;
+				break;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED: bytesPerPixel = 2;
+				break;
+			case FileInfo.GRAY32_FLOAT:
+			case FileInfo.GRAY32_INT: bytesPerPixel = 4;
+				break;
+			default: return null;
+		}
+		if (fi.stripOffsets != null) {
+			for (int i=1; i<fi.stripOffsets.length; i++) {
+				if (fi.stripOffsets[i] != fi.stripOffsets[i-1] + fi.stripLengths[i-1]) return null;
+			}
+		}
+		long rowBytes = (long) fi.width * bytesPerPixel;
+		int rowsPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / rowBytes);
+		MappedByteBuffer[] chunks = new MappedByteBuffer[(fi.height + rowsPerChunk - 1) / rowsPerChunk];
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if (fi.getOffset() + rowBytes * fi.height > channel.size()) return null;
+			for (int c=0; c<chunks.length; c++) {
+				int rows = Math.min(rowsPerChunk, fi.height - c * rowsPerChunk);
+				chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, fi.getOffset() + c * rowsPerChunk * rowBytes,
+					rows * rowBytes);
+				chunks[c].order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			}
+		}
+		return new KymographTiles(fi.width, fi.height, chunks, rowsPerChunk, fi.fileType, cTable(fi));
+	}
+
+	/**
+	 * The calibration ImageJ gives an 8 or 16-bit image when it opens it: the function saved in the description of
+	 * the file, or for signed 16-bit pixels, which ImageJ shifts to unsigned, the shift back.
+	 *
+	 * @param fi the image.
+	 *
+	 * @return the calibrated value of each raw value, or null if the pixels are not calibrated.
+	 */
+	private static float[] cTable(FileInfo fi) {
+		int size;
+		switch (fi.fileType) {
+			case FileInfo.GRAY8: size = 256;
+				break;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED: size = 65536;
+				break;
+			default: return null;
+		}
+		new FileOpener(fi).decodeDescriptionString(fi);
+		Calibration cal = new Calibration();
+		if (fi.coefficients != null) cal.setFunction(fi.calibrationFunction, fi.coefficients, fi.valueUnit);
+		if (fi.fileType == FileInfo.GRAY16_SIGNED && !cal.calibrated()) cal.setSigned16BitCalibration();
+		if (!cal.calibrated()) return null;
+		float[] cTable = new float[size];
+		for (int raw=0; raw<size; raw++) {
+			cTable[raw] = (float) cal.getCValue((double) raw);
+		}
+		return cTable;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the image processor the pixels come from, or null if they are mapped from a file.
+	 */
+	public ImageProcessor getProcessor() {
+		return ip;
+	}
+
+	/**
+	 * The value of a pixel, calibrated like ImageProcessor.getPixelValue() for a processor.
+	 *
+	 * @param x the column.
+	 * @param y the row.
+	 *
+	 * @return the value.
+	 */
+	public float getf(int x, int y) {
+		if (ip != null) return ip.getPixelValue(x, y);
+		MappedByteBuffer chunk = chunks[y / rowsPerChunk];
+		int i = (y % rowsPerChunk) * width + x;
+		switch (fileType) {
+			case FileInfo.GRAY8: return calibrated(chunk.get(i) & 0xff);
+			case FileInfo.GRAY16_UNSIGNED: return calibrated(chunk.getShort(2 * i) & 0xffff);
+			// ImageJ shifts signed 16-bit images to unsigned, and its calibration shifts them back
+			case FileInfo.GRAY16_SIGNED: return calibrated(chunk.getShort(2 * i) + 32768);
+			case FileInfo.GRAY32_INT: return chunk.getInt(4 * i);
+			default: return chunk.getFloat(4 * i);
+		}
+	}
+
+	private float calibrated(int raw) {
+		return (cTable != null) ? cTable[raw] : raw;
+	}
+
+	/**
+	 * Copy the rows [y0, y1) into a buffer, row after row. Safe to call from several threads.
+	 *
+	 * @param y0 the first row.
+	 * @param y1 the end of the rows (exclusive).
+	 * @param buffer at least (y1 - y0) * width values.
+	 *
+	 * @return void.
+	 */
+	public void rows(int y0, int y1, float[] buffer) {
+		int i = 0;
+		for (int y=y0; y<y1; y++) {
+			for (int x=0; x<width; x++) {
+				buffer[i++] = getf(x, y);
+			}
+		}
+	}
+}
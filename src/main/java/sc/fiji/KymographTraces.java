@@ -0,0 +1,244 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.awt.Color;
+import java.awt.Polygon;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import ij.gui.Line;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import ij.io.RoiDecoder;
+import ij.io.TiffDecoder;
+
+
+/**
+ * KymographTraces.java
+ * Purpose: read saved traces back from image overlays and RoiManager zips, without reading the pixels
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class KymographTraces {
+
+
+	// side options
+	public static final int SIDE_FROM_COLORS = -1;
+
+
+	private KymographTraces() {}
+
+	/**
+	 * Read the ROIs saved with a kymograph: the overlay of a tiff, or the entries of a RoiManager zip. The overlay
+	 * is read from the ImageJ metadata of the tiff without decoding the pixels, so the cost depends on the number
+	 * of ROIs, not on the size of the image.
+	 *
+	 * @param file a .tif/.tiff image or a .zip of .roi files.
+	 *
+	 * @return the ROIs, empty if the file has none.
+	 */
+	public static Roi[] readRois(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".zip")) {
+			return readZip(file);
+		}
+		FileInfo[] infos = new TiffDecoder(file.getAbsoluteFile().getParent() + File.separator, file.getName())
+			.getTiffInfo();
+		if (infos == null || infos.length == 0) throw new IOException("Cannot open " + file.getName());
+		byte[][] overlay = infos[0].overlay;
+		if (overlay == null) return new Roi[0];
+		List<Roi> rois = new ArrayList<Roi>(overlay.length);
+		for (byte[] bytes : overlay) {
+			Roi roi = RoiDecoder.openFromByteArray(bytes);
+			if (roi != null) rois.add(roi);
+		}
+		return rois.toArray(new Roi[rois.size()]);
+	}
+
+	private static Roi[] readZip(File file) throws IOException {
+		List<Roi> rois = new ArrayList<Roi>();
+		try (ZipInputStream in = new ZipInputStream(new FileInputStream(file))) {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (!name.endsWith(".roi")) continue;
+				Roi roi = new RoiDecoder(readAll(in), name).getRoi();
+				if (roi != null) rois.add(roi);
+			}
+		}
+		return rois.toArray(new Roi[rois.size()]);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+		while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Turn ROIs into traces. Polylines are used as they are; single Line segments, as stored in the plugin's
+	 * overlay, are chained end to start into polylines.
+	 *
+	 * @param label the label of the traces.
+	 * @param rois the ROIs.
+	 * @param side TraceAnalysis.LEFT, TraceAnalysis.RIGHT, or SIDE_FROM_COLORS to infer it from the phase colors of
+	 * the segments (RIGHT when there is nothing to infer from).
+	 *
+	 * @return the traces.
+	 */
+	public static List<Trace> fromRois(String label, Roi[] rois, int side) {
+		List<Trace> traces = new ArrayList<Trace>();
+		List<Line> segments = new ArrayList<Line>();
+		for (Roi roi : rois) {
+			if (roi instanceof Line) {
+				segments.add((Line) roi);
+			}
+			else if (roi.getType() == Roi.POLYLINE) {
+				Polygon p = roi.getPolygon();
+				int s = (side == SIDE_FROM_COLORS) ? TraceAnalysis.RIGHT : side;
+				traces.add(new Trace(label, p.xpoints, p.ypoints, p.npoints, s));
+			}
+		}
+		for (List<Line> chain : chain(segments)) {
+			int n = chain.size() + 1;
+			int[] x = new int[n];
+			int[] y = new int[n];
+			for (int i=0; i<chain.size(); i++) {
+				Line l = chain.get(i);
+				x[i] = (int) Math.round(l.x1d);
+				y[i] = (int) Math.round(l.y1d);
+				x[i+1] = (int) Math.round(l.x2d);
+				y[i+1] = (int) Math.round(l.y2d);
+			}
+			int s = (side == SIDE_FROM_COLORS) ? inferSide(chain) : side;
+			traces.add(new Trace(label, x, y, n, s));
+		}
+		return traces;
+	}
+
+	/**
+	 * Chain segments whose end is the start of another one. Chains start at segments no other segment leads to,
+	 * and follow the overlay order when several segments continue from the same point.
+	 */
+	private static List<List<Line>> chain(List<Line> segments) {
+		int n = segments.size();
+		Map<Long, List<Integer>> byStart = new HashMap<Long, List<Integer>>();
+		Map<Long, Integer> ends = new HashMap<Long, Integer>();
+		for (int i=0; i<n; i++) {
+			Line l = segments.get(i);
+			long start = key(l.x1d, l.y1d);
+			List<Integer> list = byStart.get(start);
+			if (list == null) {
+				list = new ArrayList<Integer>();
+				byStart.put(start, list);
+			}
+			list.add(i);
+			Long end = key(l.x2d, l.y2d);
+			Integer count = ends.get(end);
+			ends.put(end, (count == null) ? 1 : count + 1);
+		}
+		boolean[] used = new boolean[n];
+		List<List<Line>> chains = new ArrayList<List<Line>>();
+		for (int pass=0; pass<2; pass++) {
+			for (int i=0; i<n; i++) {
+				if (used[i]) continue;
+				Line head = segments.get(i);
+				if (pass == 0 && ends.containsKey(key(head.x1d, head.y1d))) continue;
+				List<Line> chain = new ArrayList<Line>();
+				int j = i;
+				while (j >= 0) {
+					used[j] = true;
+					Line l = segments.get(j);
+					chain.add(l);
+					j = -1;
+					List<Integer> next = byStart.get(key(l.x2d, l.y2d));
+					if (next != null) {
+						for (int k : next) {
+							if (!used[k]) {
+								j = k;
+								break;
+							}
+						}
+					}
+				}
+				chains.add(chain);
+			}
+		}
+		return chains;
+	}
+
+	private static long key(double x, double y) {
+		return (Math.round(x) << 32) ^ (Math.round(y) & 0xffffffffL);
+	}
+
+	/**
+	 * Infer the side of a chain from the overlay colors: green segments are growth, red ones shrink.
+	 */
+	private static int inferSide(List<Line> chain) {
+		int left = 0;
+		int right = 0;
+		for (Line l : chain) {
+			Color c = l.getStrokeColor();
+			if (c == null) continue;
+			int phase = TraceAnalysis.getPhase((int) Math.round(l.x1d), (int) Math.round(l.y1d),
+				(int) Math.round(l.x2d), (int) Math.round(l.y2d), TraceAnalysis.LEFT, 0);
+			if (phase != TraceAnalysis.GROWTH && phase != TraceAnalysis.SHRINK) continue;
+			if (sameColor(c, Color.green)) {
+				if (phase == TraceAnalysis.GROWTH) left++;
+				else right++;
+			}
+			else if (sameColor(c, Color.red)) {
+				if (phase == TraceAnalysis.SHRINK) left++;
+				else right++;
+			}
+		}
+		return (left > right) ? TraceAnalysis.LEFT : TraceAnalysis.RIGHT;
+	}
+
+	private static boolean sameColor(Color a, Color b) {
+		return a.getRGB() == b.getRGB();
+	}
+
+	/**
+	 * List the kymograph and RoiManager files of a directory and its subdirectories, in a stable order. An image
+	 * saved with an overlay sidecar is listed once, by its sidecar, which holds the same traces and is read faster.
+	 *
+	 * @param dir the directory.
+	 *
+	 * @return the .tif, .tiff and .zip files.
+	 */
+	public static List<File> listFiles(File dir) {
+		List<File> files = new ArrayList<File>();
+		File[] children = dir.listFiles();
+		if (children == null) return files;
+		Arrays.sort(children);
+		for (File f : children) {
+			if (f.isDirectory()) {
+				files.addAll(listFiles(f));
+				continue;
+			}
+			String name = f.getName().toLowerCase();
+			if (name.endsWith(".zip")) files.add(f);
+			else if ((name.endsWith(".tif") || name.endsWith(".tiff")) && !OverlaySidecar.of(f.getPath()).isFile()) {
+				files.add(f);
+			}
+		}
+		return files;
+	}
+}
@@ -0,0 +1,265 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ij.Prefs;
+
+
+/**
+ * Metrics.java
+ * Purpose: low-overhead timers of the analysis pipeline. Each probe keeps a latency histogram (for p50/p99) and the
+ * bytes allocated by the measured thread, is emitted as a JFR event when the JVM has Flight Recorder, and can be
+ * dumped to a file on demand.
+ *
+ * Both are off unless switched on with setEnabled() (the Metrics plugin), and remembered in the preferences.
+ * Counting allocations switches on the allocation accounting of the whole JVM, so it has its own switch, and the
+ * accounting is switched back off with it.
+ *
+ * A probe is used as:
+ * <pre>
+ * long t = Metrics.start(), a = Metrics.allocated();
+ * ...
+ * Metrics.GET_LINES.end(t, a);
+ * </pre>
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class Metrics {
+
+
+	public static final Probe ROI_MODIFIED = new Probe("roiModified");
+	public static final Probe GET_LINES = new Probe("getLines");
+	public static final Probe CALCULATE = new Probe("calculate");
+	public static final Probe DISPLAY = new Probe("display");
+	public static final Probe DRAW = new Probe("draw");
+	public static final Probe OUTPUT = new Probe("output");
+	public static final Probe SAVE_NEW = new Probe("saveNew");
+	public static final Probe SAVE_APPEND_DATA = new Probe("saveAppend data");
+	public static final Probe SAVE_APPEND_OVERLAY = new Probe("saveAppend overlay");
+	private static final Probe[] PROBES = {ROI_MODIFIED, GET_LINES, CALCULATE, DISPLAY, DRAW, OUTPUT, SAVE_NEW,
+		SAVE_APPEND_DATA, SAVE_APPEND_OVERLAY};
+
+	public static final String HEADER = "Operation, Count, p50(us), p99(us), Max(us), Mean(us), Total(ms), "
+		+ "Allocated per call(bytes), Allocated total(bytes)";
+
+
+	// 8 sub-buckets per power of two, so a percentile is within 12.5% of the true latency
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private static final String TIMING_KEY = "sc.fiji.kymograph.metrics";
+	private static final String ALLOCATIONS_KEY = "sc.fiji.kymograph.metrics.allocations";
+	// returned by start() and allocated() when not measuring
+	private static final long OFF = Long.MIN_VALUE;
+
+	private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+	private static final Recorder RECORDER = flightRecorder();
+
+	private static volatile boolean timing;
+	private static volatile boolean allocations;
+	// true if the allocation accounting of the JVM was switched on here
+	private static boolean accountingSwitched;
+
+	static {
+		setEnabled(Prefs.getBoolean(TIMING_KEY, false), Prefs.getBoolean(ALLOCATIONS_KEY, false));
+	}
+
+
+	private Metrics() {}
+
+	/**
+	 * Switch the measurements on or off, for this session and the next ones.
+	 *
+	 * @param timing true to time the operations.
+	 * @param allocations true to also count the bytes they allocate.
+	 *
+	 * @return void.
+	 */
+	public static synchronized void setEnabled(boolean timing, boolean allocations) {
+		allocations = allocations && timing && THREADS != null;
+		try {
+			if (allocations && !THREADS.isThreadAllocatedMemoryEnabled()) {
+				THREADS.setThreadAllocatedMemoryEnabled(true);
+				accountingSwitched = true;
+			}
+			else if (!allocations && accountingSwitched) {
+				THREADS.setThreadAllocatedMemoryEnabled(false);
+				accountingSwitched = false;
+			}
+		} catch (RuntimeException e) {
+			allocations = false;
+		}
+		Metrics.timing = timing;
+		Metrics.allocations = allocations;
+		Prefs.set(TIMING_KEY, timing);
+		Prefs.set(ALLOCATIONS_KEY, allocations);
+	}
+
+	public static boolean isTiming() {
+		return timing;
+	}
+
+	public static boolean isCountingAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return the start time of a measurement, or OFF when not timing.
+	 */
+	public static long start() {
+		return timing ? System.nanoTime() : OFF;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, or OFF when not counting them.
+	 */
+	public static long allocated() {
+		return allocations ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : OFF;
+	}
+
+	/**
+	 * Write the statistics of all probes, one row each.
+	 *
+	 * @param file the output file.
+	 * @param reset true to start counting again afterwards.
+	 *
+	 * @return void.
+	 */
+	public static void dump(File file, boolean reset) throws IOException {
+		try (PrintWriter out = new PrintWriter(file)) {
+			out.println(HEADER);
+			for (Probe p : PROBES) {
+				long count = p.count();
+				if (count == 0) continue;
+				out.println(String.format("%s, %d, %.1f, %.1f, %.1f, %.1f, %.3f, %d, %d", p.name, count,
+					p.percentile(0.5) / 1e3, p.percentile(0.99) / 1e3, p.max.get() / 1e3,
+					p.total.get() / 1e3 / count, p.total.get() / 1e6, p.allocated.get() / count, p.allocated.get()));
+				if (reset) p.reset();
+			}
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (!threads.isThreadAllocatedMemorySupported()) return null;
+			return threads;
+		} catch (RuntimeException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the recorder of Flight Recorder events, or null if it was not built or the JVM has no jdk.jfr.
+	 */
+	private static Recorder flightRecorder() {
+		try {
+			return (Recorder) Class.forName("sc.fiji.MetricsEvent$Emitter").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// built without src/main/java11, or a JVM without jdk.jfr
+			return null;
+		}
+	}
+
+	/**
+	 * Records a measurement as a Flight Recorder event. Implemented in src/main/java11, which is built for Java 11,
+	 * so the rest of the plugin still builds for Java 8.
+	 */
+	interface Recorder {
+		void record(String operation, long latency, long allocated);
+	}
+
+	/**
+	 * An instrumented operation.
+	 */
+	public static final class Probe {
+		final String name;
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		private final AtomicLong allocated = new AtomicLong();
+
+		Probe(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * End a measurement. Nothing is recorded if timing was off at the beginning.
+		 *
+		 * @param start the value of Metrics.start() at the beginning.
+		 * @param allocatedStart the value of Metrics.allocated() at the beginning.
+		 *
+		 * @return void.
+		 */
+		public void end(long start, long allocatedStart) {
+			if (start == OFF) return;
+			long nanos = Math.max(0, System.nanoTime() - start);
+			long allocatedEnd = allocated();
+			long bytes = (allocatedStart == OFF || allocatedEnd == OFF) ? 0
+				: Math.max(0, allocatedEnd - allocatedStart);
+			histogram.incrementAndGet(bucket(nanos));
+			total.addAndGet(nanos);
+			allocated.addAndGet(bytes);
+			long m = max.get();
+			while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+			if (RECORDER != null) RECORDER.record(name, nanos, bytes);
+		}
+
+		long count() {
+			long count = 0;
+			for (int i=0; i<BUCKETS; i++) count += histogram.get(i);
+			return count;
+		}
+
+		/**
+		 * @return the latency below which the fraction q of the measurements fall, in nanoseconds.
+		 */
+		long percentile(double q) {
+			long[] counts = new long[BUCKETS];
+			long count = 0;
+			for (int i=0; i<BUCKETS; i++) {
+				counts[i] = histogram.get(i);
+				count += counts[i];
+			}
+			long rank = (long) Math.ceil(q * count);
+			long seen = 0;
+			for (int i=0; i<BUCKETS; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0) return Math.min(max.get(), (lowest(i) + lowest(i + 1)) / 2);
+			}
+			return max.get();
+		}
+
+		void reset() {
+			for (int i=0; i<BUCKETS; i++) histogram.set(i, 0);
+			total.set(0);
+			max.set(0);
+			allocated.set(0);
+		}
+
+		private static int bucket(long nanos) {
+			if (nanos < SUB_BUCKETS) return (int) nanos;
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+			return (exponent + 1) * SUB_BUCKETS + (int) ((nanos >>> exponent) - SUB_BUCKETS);
+		}
+
+		private static long lowest(int bucket) {
+			if (bucket < SUB_BUCKETS) return bucket;
+			int exponent = bucket / SUB_BUCKETS - 1;
+			return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exponent;
+		}
+	}
+}
@@ -8,8 +8,10 @@ import java.awt.Frame;
 import java.awt.Label;
 import java.awt.Panel;
 import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.awt.Button;
 import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.GridLayout;
 import java.awt.GridBagLayout;
 import java.awt.GridBagConstraints;
@@ -21,15 +23,25 @@ import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.WindowEvent;
+import java.awt.event.WindowFocusListener;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import ij.io.FileSaver;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.PrintWriter;
-import java.io.BufferedWriter;
+import java.io.Writer;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -37,6 +49,8 @@ import ij.IJ;
 import ij.ImageJ;
 import ij.ImageListener;
 import ij.ImagePlus;
+import ij.Macro;
+import ij.Prefs;
 import ij.WindowManager;
 
 import ij.gui.ImageCanvas;
@@ -46,6 +60,8 @@ import ij.gui.Overlay;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.RoiListener;
+import ij.io.FileInfo;
+import ij.util.Tools;
 
 import ij.plugin.PlugIn;
 import ij.plugin.frame.PlugInFrame;
@@ -59,7 +75,7 @@ import ij.plugin.frame.PlugInFrame;
  * @version v1.0
  */
 @SuppressWarnings("serial")
-public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugIn, ActionListener, ImageListener, RoiListener, KeyListener, MouseListener {
+public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugIn, ActionListener, ImageListener, RoiListener, KeyListener, MouseListener, WindowFocusListener {
 	
 
 	// UI window
@@ -88,16 +104,22 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	private Button saveNewButton;
 	private Button saveAppendButton;
 	private Button drawOverlay;
+	private Button detectButton;
+	private Button snapButton;
+	private Button sidecarButton;
+	private Button columnsButton;
+	private Button undoButton;
+	private Button redoButton;
 
 
 	// control variables
 	private int side;
-	private final int LEFT = 0;
-	private final int RIGHT = 1;
-	private final int GROWTH = 0;
-	private final int SHRINK = 1;
-	private final int PAUSE = 2;
-	private final int UNDEFINED = -1;
+	private final int LEFT = TraceAnalysis.LEFT;
+	private final int RIGHT = TraceAnalysis.RIGHT;
+	private final int GROWTH = TraceAnalysis.GROWTH;
+	private final int SHRINK = TraceAnalysis.SHRINK;
+	private final int PAUSE = TraceAnalysis.PAUSE;
+	private final int UNDEFINED = TraceAnalysis.UNDEFINED;
 	private double XSCALE = 0.08;
 	private double YSCALE = 2.5;
 	private double PAUSEANGLE = 3;
@@ -105,28 +127,48 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 
 
 	// data indexing
-	private final int PHASE = 0;
-	private final int DIST = 1;
-	private final int TIME = 2;
-	private final int RATE = 3;
-	private final int NUMCAT = 0;
-	private final int NUMRES = 1;
-	private final int TGROWTH = 2;
-	private final int TSHRINK = 3;
-	private final int FREQCAT = 4;
-	private final int FREQRES = 5;
-	private final int DGROWTH = 6;
-	private final int DSHRINK = 7;
+	private final int NUMCAT = TraceAnalysis.NUMCAT;
+	private final int NUMRES = TraceAnalysis.NUMRES;
+	private final int TGROWTH = TraceAnalysis.TGROWTH;
+	private final int TSHRINK = TraceAnalysis.TSHRINK;
+	private final int FREQCAT = TraceAnalysis.FREQCAT;
+	private final int FREQRES = TraceAnalysis.FREQRES;
+	private final int DGROWTH = TraceAnalysis.DGROWTH;
+	private final int DSHRINK = TraceAnalysis.DSHRINK;
 
 
 	// ROI data
 	private Boolean finished;
 	private PolygonRoi currentPolyline;
-	private Line[] lines;
-	private double[][] data;
-	private ArrayList<Integer> starts;
-	private ArrayList<double[]> data2;
-	private int numMicrotubule;
+	private SegmentStore store = new SegmentStore();
+	private final double[] currRun = new double[SegmentStore.RUN_FIELDS];
+
+
+	// incremental update state
+	private int changedFrom;
+	private int changedTo;
+	private int changedToOld;
+	private int prevNumLines;
+
+
+	// background analysis
+	private static final long FRAME_NANOS = 16000000L;
+	private final Object analysisLock = new Object();
+	private final AtomicReference<PolylineSnapshot> pendingPolyline = new AtomicReference<PolylineSnapshot>();
+	private final AtomicBoolean analysisScheduled = new AtomicBoolean();
+	private final AtomicBoolean publishScheduled = new AtomicBoolean();
+	private volatile long lastAnalysis;
+	private volatile int generation;
+	private final ScheduledExecutorService analysisExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Microtubule Kymograph Analysis");
+		t.setDaemon(true);
+		return t;
+	});
+
+
+	// output buffers
+	private final StringBuilder row = new StringBuilder(256);
+	private char[] rowChars = new char[256];
 
 
 	// image properties
@@ -136,9 +178,49 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	private ImageCanvas canvas;
 	
 
+	// sessions of the other open images, least recently used first, guarded by analysisLock
+	private static final long MAX_INACTIVE_BYTES = 64L << 20;
+	private final LinkedHashMap<ImagePlus, KymographSession> sessions =
+		new LinkedHashMap<ImagePlus, KymographSession>(16, 0.75f, true);
+
+
+	// undo/redo, the edit flags are set for getLines() under analysisLock
+	private EditHistory history = new EditHistory();
+	private boolean recordEdit;
+	private boolean drawingEdit;
+	private boolean restoring;
+	private boolean keepSegments;
+
+
+	// crash recovery
+	private static final String JOURNAL_DIR = "Microtubule_Kymograph_Analysis.journals";
+	// the journal of the current image, the other sessions keep theirs
+	private EditJournal journal;
+
+
+	// overlay and results saving
+	private boolean sidecar;
+	private boolean columns;
+	private ResultsColumns.Builder columnsBuilder;
+
+
+	// vertex snapping
+	private static final int SNAP_RADIUS = 5;
+	private boolean snap;
+	private RidgeField ridgeField;
+	private int[] clickX = new int[16];
+	private int[] clickY = new int[16];
+	private int[] snapX = new int[16];
+
+
 	// image overlay
 	private Overlay overlayRois;
 	private boolean showOverlay;
+	private boolean overlayValid;
+	private ArrayList<Line> staleLines = new ArrayList<Line>();
+	private Line[] overlayLines;
+	private int dirtyFrom;
+	private int dirtyTo;
 	static final int OVERLAY_KEY = 17;
 
 	
@@ -151,6 +233,12 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	 */
 	public void run(String arg0) {
 		
+		// started from a macro, the window was not built
+		if (frame == null) {
+			runMacro();
+			return;
+		}
+
 		// get the associated image parameters
 		image = IJ.getImage();
 		imageDirectory = IJ.getDir("image");
@@ -158,10 +246,52 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		window = image.getWindow();
 		canvas = image.getCanvas();
 		showOverlay = true;
+		adoptCalibration(image);
 		drawRight();
 		IJ.run(image, "Line Width...", "line=2");
+		watchWindows(true);
 		frame.setVisible(true);
+		if (journal == null) startJournal();
+
+	}
 
+	/**
+	 * Analyze the selection of the current image without the window, for macros, e.g.
+	 * run("Microtubule Kymograph Analysis", "side=left pause=3 results=/path/to/results.csv");
+	 * The scales come from the image calibration when it is in microns and seconds, otherwise from the xscale and
+	 * yscale options. The rows are appended to the results file, or written to the Log window without one.
+	 *
+	 * @return void.
+	 */
+	private void runMacro() {
+		ImagePlus imp = IJ.getImage();
+		String options = Macro.getOptions();
+		if (options == null) options = "";
+		double[] scales = KymographAnalyzer.calibratedScales(imp);
+		if (scales == null) {
+			scales = new double[] {Tools.parseDouble(Macro.getValue(options, "xscale", String.valueOf(XSCALE))),
+				Tools.parseDouble(Macro.getValue(options, "yscale", String.valueOf(YSCALE)))};
+		}
+		String results = Macro.getValue(options, "results", "");
+		StringBuilder rows = new StringBuilder();
+		try {
+			KymographAnalyzer analyzer = new KymographAnalyzer(KymographAnalyzer.side(Macro.getValue(options, "side",
+				"right")), scales[0], scales[1], Tools.parseDouble(Macro.getValue(options, "pause",
+				String.valueOf(PAUSEANGLE))));
+			ResultsCsv.appendTrace(rows, imp.getTitle(), analyzer.analyze(imp.getRoi()));
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
+			return;
+		}
+		if (results.isEmpty()) {
+			IJ.log(ResultsCsv.HEADER + "\n" + rows);
+			return;
+		}
+		try {
+			ResultsCsv.appendTo(new File(results), rows);
+		} catch (IOException e) {
+			IJ.error("ERROR: exception occoured" + e);
+		}
 	}
 
 	/**
@@ -196,7 +326,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		drawPanel.setLayout(new GridLayout());
 		statPanel.setLayout(new GridLayout(12,2));
 		settPanel.setLayout(new GridLayout(3,1));
-		funcPanel.setLayout(new GridLayout(4,1));
+		funcPanel.setLayout(new GridLayout(9,1));
 		
 
 		// Draw buttons
@@ -290,7 +420,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 
 		settPanel.setLayout(new GridBagLayout());
 		xscale = new Label(String.valueOf(XSCALE));
-		Label xscaleLabel = new Label(" X-scale(μm/pixel): ");
+		Label xscaleLabel = new Label(" X-scale(um/pixel): ");
 		xscaleLabel.setAlignment(Label.RIGHT);
 		changeX = new Button("Change X-scale");
 		changeX.addActionListener(this);
@@ -308,7 +438,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		settPanel.add(changeY, cs);
 
 		pauseAngle = new Label(String.valueOf(PAUSEANGLE));
-		Label pauseLabel = new Label(" Pause Angle(°): ");
+		Label pauseLabel = new Label(" Pause Angle(deg): ");
 		pauseLabel.setAlignment(Label.RIGHT);
 		changePause = new Button("Change Pause Angle");
 		changePause.addActionListener(this);
@@ -334,6 +464,31 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		drawOverlay.addActionListener(this);
 		funcPanel.add(drawOverlay);
 
+		Panel undoPanel = new Panel(new GridLayout(1,2));
+		undoButton = new Button("Undo");
+		undoButton.addActionListener(this);
+		undoPanel.add(undoButton);
+		redoButton = new Button("Redo");
+		redoButton.addActionListener(this);
+		undoPanel.add(redoButton);
+		funcPanel.add(undoPanel);
+
+		detectButton = new Button("Detect Trace");
+		detectButton.addActionListener(this);
+		funcPanel.add(detectButton);
+
+		snapButton = new Button("Enable Snapping");
+		snapButton.addActionListener(this);
+		funcPanel.add(snapButton);
+
+		sidecarButton = new Button("Save Overlay as Sidecar");
+		sidecarButton.addActionListener(this);
+		funcPanel.add(sidecarButton);
+
+		columnsButton = new Button("Save Results as Columns");
+		columnsButton.addActionListener(this);
+		funcPanel.add(columnsButton);
+
 		// Arrange Panels
 		mainPanel.setLayout(new GridBagLayout());
 		secPanel.setLayout(new GridBagLayout());
@@ -404,16 +559,22 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		if (overlayRois != null) {
 			overlayRois.clear();
 		}
+		overlayValid = false;
+		staleLines.clear();
 		image.updateAndDraw();
 		image.changes = false;
 
 		// empty data
-		currentPolyline = null;
-		lines = null;
-		data = null;
-		starts = null;
-		data2 = null;
-		numMicrotubule = 0;
+		synchronized (analysisLock) {
+			if (!restoring && store.numVertices() >= 2) history.discarded(clickX, clickY, store.numVertices());
+			generation++;
+			pendingPolyline.set(null);
+			currentPolyline = null;
+			store.clear();
+			overlayLines = null;
+			dirtyFrom = dirtyTo = 0;
+			if (journal != null) journal.reset(side, image.getTitle());
+		}
 		finished = true;
 
 		// clear display
@@ -425,6 +586,120 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 
 	}
 
+	/**
+	 * Drop the cached segments and recompute the current polyline from scratch.
+	 * Needed whenever a setting that every segment depends on is changed.
+	 *
+	 * @return void.
+	 */
+	private void recalculate() {
+		synchronized (analysisLock) {
+			generation++;
+			pendingPolyline.set(null);
+			store.clear();
+			overlayLines = null;
+			dirtyFrom = dirtyTo = 0;
+			overlayValid = false;
+			staleLines.clear();
+			if (currentPolyline == null) return;
+			// the vertices are journaled again from scratch, and this is not an edit
+			if (journal != null) journal.reset(side, image.getTitle());
+			recordEdit = false;
+			if (getLines()) {
+				calculate();
+				display();
+				draw();
+			}
+		}
+	}
+
+	/**
+	 * Queue the current polyline for analysis on the background thread. Events arriving while a run is pending
+	 * only replace the queued snapshot, so a burst of edits costs one recompute, at most once per frame.
+	 *
+	 * @param record true for an edit of the user, which can be undone.
+	 *
+	 * @return void.
+	 */
+	private void requestAnalysis(boolean record) {
+		int n = currentPolyline.getNCoordinates();
+		Polygon currentPolygon = currentPolyline.getPolygon();
+		if (finished) n+=1;
+		pendingPolyline.set(new PolylineSnapshot(currentPolygon.xpoints, currentPolygon.ypoints, n, generation,
+			record, !finished));
+		if (analysisScheduled.compareAndSet(false, true)) {
+			long delay = Math.max(0, lastAnalysis + FRAME_NANOS - System.nanoTime());
+			analysisExecutor.schedule(this::analyze, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Analyze the latest queued polyline. Runs on the background thread and hands the results to publish().
+	 *
+	 * @return void.
+	 */
+	private void analyze() {
+		lastAnalysis = System.nanoTime();
+		analysisScheduled.set(false);
+		PolylineSnapshot snapshot = pendingPolyline.getAndSet(null);
+		if (snapshot == null) return;
+		try {
+			synchronized (analysisLock) {
+				if (snapshot.generation != generation) return;
+				recordEdit = snapshot.record;
+				drawingEdit = snapshot.drawing;
+				long t = Metrics.start(), a = Metrics.allocated();
+				boolean changed = getLines(snapshot.x, snapshot.y, snapshot.n);
+				Metrics.GET_LINES.end(t, a);
+				if (!changed) return;
+				t = Metrics.start();
+				a = Metrics.allocated();
+				calculate();
+				Metrics.CALCULATE.end(t, a);
+			}
+			if (publishScheduled.compareAndSet(false, true)) {
+				EventQueue.invokeLater(this::publish);
+			}
+		} catch (RuntimeException e) {
+			IJ.handleException(e);
+		}
+	}
+
+	/**
+	 * Show a message on the event dispatch thread, once the analysis has released analysisLock. calculate() runs on
+	 * the background thread, where a modal error dialog would hold the lock the window needs to repaint.
+	 *
+	 * @param message the message.
+	 * @param error true for an error dialog, false for the Log window.
+	 *
+	 * @return void.
+	 */
+	private static void report(String message, boolean error) {
+		EventQueue.invokeLater(() -> {
+			if (error) IJ.error(message);
+			else IJ.log(message);
+		});
+	}
+
+	/**
+	 * Show the latest results in the statistics labels and the overlay. Runs on the event dispatch thread.
+	 *
+	 * @return void.
+	 */
+	private void publish() {
+		publishScheduled.set(false);
+		synchronized (analysisLock) {
+			if (image == null) return;
+			long t = Metrics.start(), a = Metrics.allocated();
+			display();
+			Metrics.DISPLAY.end(t, a);
+			t = Metrics.start();
+			a = Metrics.allocated();
+			draw();
+			Metrics.DRAW.end(t, a);
+		}
+	}
+
 	private void clearDisplay() {
 		phase.setText("0");
 		distance.setText("0");
@@ -492,6 +767,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 			xscale.setText(String.valueOf(XSCALE));
 			frame.pack();
 			IJ.log("X-scale changed to " + String.valueOf(XSCALE));
+			recalculate();
 		}
 	}
 
@@ -513,6 +789,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 			yscale.setText(String.valueOf(YSCALE));
 			frame.pack();
 			IJ.log("Y-scale changed to " + String.valueOf(YSCALE));
+			recalculate();
 		}
 	}
 
@@ -534,6 +811,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 			pauseAngle.setText(String.valueOf(PAUSEANGLE));
 			frame.pack();
 			IJ.log("Pause Angle changed to " + String.valueOf(PAUSEANGLE));
+			recalculate();
 		}
 	}
 
@@ -550,6 +828,15 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		}
 	}
 
+	/**
+	 * @return true if the current trace has segments, read under analysisLock as calculate() may be changing them.
+	 */
+	private boolean hasSegments() {
+		synchronized (analysisLock) {
+			return store.numSegments() > 0;
+		}
+	}
+
 	/**
 	 * Save data as a new file.
 	 *
@@ -557,30 +844,55 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	 */
 	private void saveNew() {
 		
-		if (lines != null && image.isVisible()) {
+		if (hasSegments() && image.isVisible()) {
 			String timeStamp = new SimpleDateFormat(".MM.dd.HH.mm").format(new Date());
 			String label = image.getTitle();
 			String fileName = label + timeStamp;
 			String imagePath = savingPath + fileName + ".tif";
-			String filePath = savingPath + fileName + ".csv";
+			String filePath = savingPath + fileName + (columns ? ResultsColumns.EXTENSION : ".csv");
 			IJ.log("File name: " + fileName);
-			if (image.changes) {
+			long start = Metrics.start(), allocated = Metrics.allocated();
+			if (sidecar) {
+				File sidecarFile = OverlaySidecar.of(imagePath);
+				try {
+					OverlaySidecar.write(sidecarFile, overlayRoisArray());
+					IJ.log("Overlay saved to: " + sidecarFile.getName());
+				} catch (IOException e) {
+					IJ.error("ERROR: exception occoured" + e);
+				}
+			}
+			else if (image.changes) {
 				FileSaver saver = new FileSaver(image);
 				boolean success = saver.saveAsTiff(imagePath);
 				if (success) IJ.log("Image saved");
 			}
+			if (columns) {
+				try {
+					Files.deleteIfExists(new File(filePath).toPath());
+					outputColumns(new File(filePath));
+					IJ.log("Data saved");
+					if (journal != null) journal.saved();
+				} catch (IOException e){
+					IJ.error("ERROR: exception occoured" + e);
+				}
+				Metrics.SAVE_NEW.end(start, allocated);
+				return;
+			}
 			try (PrintWriter out = new PrintWriter(filePath)) {
-				String label1 = "Index, Label, Phase, Distance(um), Time(s), "
-					+ "Rate growth(um/s), Rate shrink(um/s), ";
-				String label2 = "Distance growth(um), Distance shrink(um), Time growth(s), Time shrink(s), "
-					+ "Catastrophe, Rescue, Catastrophe frequency, Rescue frequency";
-				out.println(label1 + label2);
-				String o = output();
-				out.print(o);
+				out.println(ResultsCsv.HEADER);
+				synchronized (analysisLock) {
+					long t = Metrics.start(), a = Metrics.allocated();
+					output(out);
+					Metrics.OUTPUT.end(t, a);
+				}
 				IJ.log("Data saved");
+				if (journal != null) journal.saved();
 			} catch (FileNotFoundException e){
 				IJ.error("ERROR: File not found");
+			} catch (IOException e){
+				IJ.error("ERROR: exception occoured" + e);
 			}
+			Metrics.SAVE_NEW.end(start, allocated);
 		}
 		else{
 			IJ.error("Nothing to save");
@@ -594,32 +906,68 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	 * @return void.
 	 */
 	private void saveAppend() {
-		if (lines != null && image.isVisible()) {
+		if (hasSegments() && image.isVisible()) {
 
 			// Append data
-			String appendDataPath = IJ.getFilePath("Select a (.csv) file to append data");
+			String appendDataPath = IJ.getFilePath("Select a (.csv or " + ResultsColumns.EXTENSION + ") file to append data");
 			if (appendDataPath != null) {
-				if (!appendDataPath.substring(appendDataPath.length()-3).equals("csv")) {
-					IJ.error("Must select a \".csv\" file to append");
+				boolean appendColumns = appendDataPath.endsWith(ResultsColumns.EXTENSION);
+				if (!appendColumns && !appendDataPath.substring(appendDataPath.length()-3).equals("csv")) {
+					IJ.error("Must select a \".csv\" or \"" + ResultsColumns.EXTENSION + "\" file to append");
 					return;
 				}
 				IJ.log("Appending data to: " + new File(appendDataPath).getName());
-				try { 
-					// Open given file in append mode. 
-					BufferedWriter out = new BufferedWriter( 
-						new FileWriter(appendDataPath, true)); 
-					out.write(output()); 
-					out.close(); 
+				long t = Metrics.start(), a = Metrics.allocated();
+				if (appendColumns) {
+					try {
+						outputColumns(new File(appendDataPath));
+						IJ.log("Data appended");
+						if (journal != null) journal.saved();
+					} catch (IOException e) {
+						IJ.error("ERROR: exception occoured" + e);
+					}
+				}
+				// Append the rows at once under a file lock, others may be appending to the same file
+				else try {
+					StringBuilder rows = new StringBuilder();
+					synchronized (analysisLock) {
+						ResultsCsv.appendTrace(rows, image.getTitle(), store);
+					}
+					ResultsCsv.appendTo(new File(appendDataPath), rows);
 					IJ.log("Data appended");
+					if (journal != null) journal.saved();
 				} 
 				catch (IOException e) { 
 					IJ.error("ERROR: exception occoured" + e); 
 				} 
+				Metrics.SAVE_APPEND_DATA.end(t, a);
 			} else {
 				IJ.log("Cancelled");
 				return;
 			}
 
+			// Append overlay only
+			if (sidecar) {
+				String sidecarPath = IJ.getFilePath("Select a (" + OverlaySidecar.SUFFIX + ") sidecar to append overlay");
+				if (sidecarPath == null) {
+					IJ.log("Cancelled");
+					return;
+				}
+				if (!sidecarPath.endsWith(".zip")) {
+					IJ.error("Must select a \"" + OverlaySidecar.SUFFIX + "\" file to append");
+					return;
+				}
+				long t = Metrics.start(), a = Metrics.allocated();
+				try {
+					int count = OverlaySidecar.append(new File(sidecarPath), overlayRoisArray());
+					IJ.log("Overlay appended to: " + new File(sidecarPath).getName() + " (" + count + " ROIs)");
+				} catch (IOException e) {
+					IJ.error("ERROR: exception occoured" + e);
+				}
+				Metrics.SAVE_APPEND_OVERLAY.end(t, a);
+				return;
+			}
+
 			// Append image
 			String appendImagePath = IJ.getFilePath("Select a (.tif) image to append overlay");
 			if (appendImagePath != null) {
@@ -629,6 +977,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 					return;
 				}
 				IJ.log("Appending overlay to: " + appendImage.getTitle());
+				long t = Metrics.start(), a = Metrics.allocated();
 				Overlay appendOverlay = appendImage.getOverlay();
 				if (appendOverlay != null) {
 					for (Roi i:overlayRois.toArray()) {
@@ -640,6 +989,7 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 				}
 				FileSaver saver = new FileSaver(appendImage);
 				boolean success = saver.save();
+				Metrics.SAVE_APPEND_OVERLAY.end(t, a);
 				if (success) IJ.log("Overlay appended");
 			} else {
 				IJ.log("Cancelled");
@@ -652,6 +1002,51 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		}
 	}
 
+	/**
+	 * Change the format Save New writes the statistics in: the CSV sheet, or the columnar binary format which is much
+	 * faster to read back in downstream analysis. Save Append follows the format of the chosen file.
+	 *
+	 * @return void.
+	 */
+	private void changeColumnsOption(){
+		columns = !columns;
+		columnsButton.setLabel(columns ? "Save Results as CSV" : "Save Results as Columns");
+		IJ.log(columns ? "Results saved as columns (" + ResultsColumns.EXTENSION + ")" : "Results saved as CSV (.csv)");
+	}
+
+	/**
+	 * Change where the overlay is saved: in a copy of the image, or in a RoiManager zip next to it, which never
+	 * re-encodes the pixels.
+	 *
+	 * @return void.
+	 */
+	private void changeSidecarOption(){
+		sidecar = !sidecar;
+		sidecarButton.setLabel(sidecar ? "Save Overlay in Image" : "Save Overlay as Sidecar");
+		IJ.log(sidecar ? "Overlay saved as sidecar (" + OverlaySidecar.SUFFIX + ")" : "Overlay saved in image (.tif)");
+	}
+
+	/**
+	 * The segments of the current trace as overlay lines, whether the overlay is shown or not.
+	 *
+	 * @return the lines.
+	 */
+	private Roi[] overlayRoisArray(){
+		synchronized (analysisLock) {
+			Roi[] rois = new Roi[store.numSegments()];
+			for (int i=0; i<rois.length; i++) {
+				// lines not drawn yet are left to draw(), which adds the ones it creates
+				Line l = overlayLines[i];
+				if (l == null) {
+					l = new Line(store.x(i), store.y(i), store.x(i+1), store.y(i+1));
+					setPhaseColor(l, store.phase(i));
+				}
+				rois[i] = l;
+			}
+			return rois;
+		}
+	}
+
 	/**
 	 * Change overlay show option.
 	 *
@@ -661,7 +1056,362 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		showOverlay = !showOverlay;
 		drawOverlay.setLabel(showOverlay ? "Clear Overlay" : "Show Overlay");
 		IJ.log(showOverlay ? "Show Overlay" : "Clear Overlay");
-		draw();
+		synchronized (analysisLock) {
+			draw();
+		}
+	}
+
+	/**
+	 * Change vertex snapping option. Snapped vertices are moved along their row onto the tip edge before analysis.
+	 *
+	 * @return void.
+	 */
+	private void changeSnapOption(){
+		snap = !snap;
+		snapButton.setLabel(snap ? "Disable Snapping" : "Enable Snapping");
+		IJ.log(snap ? "Snapping enabled" : "Snapping disabled");
+		recalculate();
+	}
+
+	/**
+	 * Detect the tip traces of the current side on the image and use the longest one as the polyline.
+	 *
+	 * @return void.
+	 */
+	private void detectTrace() {
+		if (image == null) return;
+		List<PolygonRoi> traces = new TraceDetector().detect(KymographTiles.of(image), side);
+		if (traces.isEmpty()) {
+			IJ.log("No trace detected");
+			return;
+		}
+		IJ.log(traces.size() + " trace(s) detected, showing the longest");
+		showTrace(traces.get(0));
+	}
+
+	/**
+	 * Show a finished polyline as the current trace and analyze it.
+	 *
+	 * @param trace the polyline.
+	 *
+	 * @return void.
+	 */
+	private void showTrace(PolygonRoi trace) {
+		image.setRoi(trace);
+		Roi currentRoi = image.getRoi();
+		if (currentRoi == null || currentRoi.getType() != Roi.POLYLINE) return;
+		finished = true;
+		currentPolyline = (PolygonRoi) currentRoi;
+		requestAnalysis(true);
+	}
+
+	/**
+	 * Undo or redo the last step of the trace. Only the changed vertices differ from the current polyline, so the
+	 * statistics of the other runs are kept.
+	 *
+	 * @param undo true to undo, false to redo.
+	 *
+	 * @return void.
+	 */
+	private void undoRedo(boolean undo) {
+		if (image == null) return;
+		int[][] v;
+		// the last edit is not in the history until it is analyzed, so analyze it now rather than losing the step
+		if (pendingPolyline.get() != null) analyze();
+		synchronized (analysisLock) {
+			int n = store.numVertices();
+			v = undo ? history.undo(clickX, clickY, n) : history.redo(clickX, clickY, n);
+		}
+		if (v == null) {
+			IJ.log(undo ? "Nothing to undo" : "Nothing to redo");
+			return;
+		}
+		restoring = true;
+		try {
+			if (v[0].length < 2) {
+				image.deleteRoi();
+			}
+			else {
+				// replacing the ROI must not discard the segments the new one shares with it
+				keepSegments = true;
+				image.setRoi(new PolygonRoi(v[0], v[1], v[0].length, Roi.POLYLINE));
+				keepSegments = false;
+				Roi currentRoi = image.getRoi();
+				if (currentRoi == null || currentRoi.getType() != Roi.POLYLINE) return;
+				finished = true;
+				currentPolyline = (PolygonRoi) currentRoi;
+				requestAnalysis(false);
+			}
+		} finally {
+			restoring = false;
+			keepSegments = false;
+		}
+		IJ.log(undo ? "Undo" : "Redo");
+	}
+
+	/**
+	 * Switch to the session of another open image, creating it on first use. The session of the current image is
+	 * kept, so switching back is instant.
+	 *
+	 * @param imp the image to analyze.
+	 *
+	 * @return void.
+	 */
+	private void activate(ImagePlus imp) {
+		if (imp == null || imp == image || imp.getWindow() == null || frame == null) return;
+		removeListeners();
+		KymographSession s;
+		boolean created = false;
+		synchronized (analysisLock) {
+			if (image != null) {
+				// pending overlay changes go to the image being left
+				if (showOverlay) draw();
+				KymographSession current = saveSession();
+				current.compact();
+				sessions.put(image, current);
+			}
+			generation++;
+			pendingPolyline.set(null);
+			s = sessions.remove(imp);
+			if (s == null) {
+				s = newSession(imp);
+				created = true;
+			}
+			image = imp;
+			loadSession(s);
+			evictSessions();
+		}
+		drawLeft.setForeground(side == LEFT ? Color.LIGHT_GRAY : Color.BLACK);
+		drawRight.setForeground(side == RIGHT ? Color.LIGHT_GRAY : Color.BLACK);
+		pauseAngle.setText(String.valueOf(PAUSEANGLE));
+		clearDisplay();
+		addListeners();
+		if (created) IJ.run(image, "Line Width...", "line=2");
+		IJ.log("Analyzing: " + image.getTitle());
+		if (s.evicted()) {
+			// the cached statistics were dropped, analyze the trace again
+			recalculate();
+		}
+		else {
+			synchronized (analysisLock) {
+				display();
+			}
+		}
+		if (created) startJournal();
+	}
+
+	/**
+	 * Start the edit journal of the current image, after offering to recover the unsaved trace a crash left in it.
+	 * The journal is only replaced once the offer is answered. Without a journal, e.g. when another Fiji instance
+	 * traces the same image, tracing goes on unprotected.
+	 *
+	 * @return void.
+	 */
+	private void startJournal() {
+		ImagePlus imp = image;
+		if (imp == null) return;
+		EditJournal j;
+		try {
+			j = EditJournal.acquire(new File(Prefs.getPrefsDir(), JOURNAL_DIR), imp.getTitle());
+			if (j == null) {
+				IJ.log("Edit journal of " + imp.getTitle() + " in use by another instance, tracing without it");
+				return;
+			}
+		} catch (IOException e) {
+			IJ.log("Edit journal not available: " + e);
+			return;
+		}
+		EditJournal.Session recovered = j.recover();
+		boolean recover = recovered != null && !recovered.saved && recovered.n >= 2
+			&& recovered.title.equals(imp.getTitle())
+			&& IJ.showMessageWithCancel("Microtubule Kymograph Analysis", "Recover the unsaved trace of "
+			+ recovered.title + " (" + recovered.n + " vertices)?");
+		try {
+			j.start();
+		} catch (IOException e) {
+			IJ.log("Edit journal not available: " + e);
+			j.close(false);
+			return;
+		}
+		synchronized (analysisLock) {
+			if (image != imp) {
+				j.close(false);
+				return;
+			}
+			journal = j;
+			journal.reset(side, image.getTitle());
+			if (store.numVertices() > 0) journal.edit(0, 0, clickX, clickY, store.numVertices());
+		}
+		if (recover) {
+			if (recovered.side == LEFT) drawLeft();
+			showTrace(new PolygonRoi(Arrays.copyOf(recovered.x, recovered.n), Arrays.copyOf(recovered.y, recovered.n),
+				recovered.n, Roi.POLYLINE));
+			IJ.log("Trace recovered");
+		}
+	}
+
+	/**
+	 * @param imp an open image.
+	 *
+	 * @return true if the image can be a kymograph: a single plane shown in a window, not e.g. the time-lapse stack
+	 * of the kymograph builder.
+	 */
+	private static boolean isKymograph(ImagePlus imp) {
+		return imp.getWindow() != null && imp.getStackSize() == 1;
+	}
+
+	/**
+	 * A new session for an image, with the current settings and no trace, or with the polyline it already has.
+	 *
+	 * @param imp the image.
+	 *
+	 * @return the session.
+	 */
+	private KymographSession newSession(ImagePlus imp) {
+		KymographSession s = new KymographSession();
+		FileInfo info = imp.getOriginalFileInfo();
+		s.imageDirectory = (info != null && info.directory != null && !info.directory.isEmpty())
+			? info.directory : imageDirectory;
+		s.savingPath = s.imageDirectory;
+		s.window = imp.getWindow();
+		s.canvas = imp.getCanvas();
+		s.side = side;
+		s.xscale = XSCALE;
+		s.yscale = YSCALE;
+		double[] scales = KymographAnalyzer.calibratedScales(imp);
+		if (scales != null) {
+			s.xscale = scales[0];
+			s.yscale = scales[1];
+		}
+		s.pauseAngle = PAUSEANGLE;
+		s.finished = true;
+		Roi roi = imp.getRoi();
+		if (roi != null && roi.getType() == Roi.POLYLINE) s.currentPolyline = (PolygonRoi) roi;
+		s.clickX = new int[16];
+		s.clickY = new int[16];
+		s.snapX = new int[16];
+		s.history = new EditHistory();
+		s.staleLines = new ArrayList<Line>();
+		// an existing trace is analyzed like an evicted one
+		s.store = (s.currentPolyline == null) ? new SegmentStore() : null;
+		return s;
+	}
+
+	/**
+	 * Use the scales of a kymograph calibrated in microns per pixel and seconds per row, e.g. one made by the
+	 * kymograph builder.
+	 *
+	 * @param imp the kymograph.
+	 *
+	 * @return void.
+	 */
+	private void adoptCalibration(ImagePlus imp) {
+		double[] scales = KymographAnalyzer.calibratedScales(imp);
+		if (scales == null) return;
+		XSCALE = scales[0];
+		YSCALE = scales[1];
+		IJ.log("Scales from the image calibration: " + XSCALE + " um/pixel, " + YSCALE + " sec/pixel");
+	}
+
+	/**
+	 * Keep the state of the current image in a session. Called under analysisLock.
+	 *
+	 * @return the session.
+	 */
+	private KymographSession saveSession() {
+		KymographSession s = new KymographSession();
+		s.imageDirectory = imageDirectory;
+		s.savingPath = savingPath;
+		s.window = window;
+		s.canvas = canvas;
+		s.side = side;
+		s.xscale = XSCALE;
+		s.yscale = YSCALE;
+		s.pauseAngle = PAUSEANGLE;
+		s.finished = finished;
+		s.currentPolyline = currentPolyline;
+		s.store = store;
+		s.clickX = clickX;
+		s.clickY = clickY;
+		s.snapX = snapX;
+		s.history = history;
+		s.ridgeField = ridgeField;
+		s.overlayRois = overlayRois;
+		s.overlayValid = overlayValid;
+		s.staleLines = staleLines;
+		s.overlayLines = overlayLines;
+		s.dirtyFrom = dirtyFrom;
+		s.dirtyTo = dirtyTo;
+		s.journal = journal;
+		return s;
+	}
+
+	/**
+	 * Make a session the current state. Called under analysisLock.
+	 *
+	 * @param s the session.
+	 *
+	 * @return void.
+	 */
+	private void loadSession(KymographSession s) {
+		imageDirectory = s.imageDirectory;
+		savingPath = s.savingPath;
+		window = s.window;
+		canvas = s.canvas;
+		side = s.side;
+		XSCALE = s.xscale;
+		YSCALE = s.yscale;
+		PAUSEANGLE = s.pauseAngle;
+		finished = s.finished;
+		currentPolyline = s.currentPolyline;
+		store = (s.store == null) ? new SegmentStore() : s.store;
+		clickX = s.clickX;
+		clickY = s.clickY;
+		snapX = s.snapX;
+		history = s.history;
+		ridgeField = s.ridgeField;
+		overlayRois = s.overlayRois;
+		overlayValid = s.overlayValid;
+		staleLines = s.staleLines;
+		overlayLines = s.overlayLines;
+		dirtyFrom = s.dirtyFrom;
+		dirtyTo = s.dirtyTo;
+		journal = s.journal;
+	}
+
+	/**
+	 * Drop the cached statistics of the least recently used sessions until the others fit in MAX_INACTIVE_BYTES.
+	 * Called under analysisLock.
+	 *
+	 * @return void.
+	 */
+	private void evictSessions() {
+		long bytes = 0;
+		for (KymographSession s : sessions.values()) bytes += s.bytes();
+		for (Iterator<KymographSession> it = sessions.values().iterator(); it.hasNext() && bytes > MAX_INACTIVE_BYTES;) {
+			KymographSession s = it.next();
+			bytes -= s.bytes();
+			s.evict();
+		}
+	}
+
+	/**
+	 * Follow the activation of the image windows, to switch sessions with the image in front.
+	 *
+	 * @param watch true to start, false to stop.
+	 *
+	 * @return void.
+	 */
+	private void watchWindows(boolean watch) {
+		int[] ids = WindowManager.getIDList();
+		if (ids == null) return;
+		for (int id : ids) {
+			ImagePlus imp = WindowManager.getImage(id);
+			ImageWindow w = (imp == null) ? null : imp.getWindow();
+			if (w == null) continue;
+			w.removeWindowFocusListener(this);
+			if (watch) w.addWindowFocusListener(this);
+		}
 	}
 
 	/**
@@ -746,6 +1496,24 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		else if (label == "Clear Overlay" || label == "Show Overlay"){
 			changeOverlayShowOption();
 		}
+		else if (label == "Detect Trace"){
+			detectTrace();
+		}
+		else if (label == "Undo"){
+			undoRedo(true);
+		}
+		else if (label == "Redo"){
+			undoRedo(false);
+		}
+		else if (label == "Enable Snapping" || label == "Disable Snapping"){
+			changeSnapOption();
+		}
+		else if (label == "Save Overlay as Sidecar" || label == "Save Overlay in Image"){
+			changeSidecarOption();
+		}
+		else if (label == "Save Results as Columns" || label == "Save Results as CSV"){
+			changeColumnsOption();
+		}
 		else {
 			IJ.error("Invalid ActionEvent in actionPerformed");
 		}
@@ -755,142 +1523,185 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	*   Functionality
 	***************************************************************************************/
 
-	public void getLines() {
-
+	/**
+	 * Update the segments from the current polyline.
+	 *
+	 * @return true if any segment changed.
+	 */
+	public boolean getLines() {
 		int n = currentPolyline.getNCoordinates();
 		Polygon currentPolygon = currentPolyline.getPolygon();
-		int[] x = currentPolygon.xpoints;
-		int[] y = currentPolygon.ypoints;
 		if (finished) n+=1;
-		if (n > 2) {
-			lines = new Line[n-2];
-			for (int i=0; i<(n-2); i++) {
-				Line line = new Line(x[i], y[i], x[i+1], y[i+1]);
-				lines[i] = line;
-			}
+		return getLines(currentPolygon.xpoints, currentPolygon.ypoints, n);
+	}
+
+	/**
+	 * Update the segments from polyline coordinates. The new vertices are diffed against the cached ones so that
+	 * only the segments touching changed vertices are replaced; the range is kept for calculate() and draw().
+	 *
+	 * @param x the x coordinates of the polyline.
+	 * @param y the y coordinates of the polyline.
+	 * @param n the number of coordinates, plus one if the polyline is finished.
+	 *
+	 * @return true if any segment changed.
+	 */
+	private boolean getLines(int[] x, int[] y, int n) {
+
+		int m = Math.max(n-2, 0);
+		int nv = (m > 0) ? m+1 : 0;
+		int m0 = store.numSegments();
+		int nv0 = store.numVertices();
+
+		// common prefix and suffix with the cached clicked vertices
+		int lo = 0;
+		int common = Math.min(nv, nv0);
+		while (lo < common && x[lo] == clickX[lo] && y[lo] == clickY[lo]) lo++;
+		if (lo == common && nv == nv0) return false;
+		int hi = nv-1;
+		int hi0 = nv0-1;
+		while (hi >= lo && hi0 >= lo && x[hi] == clickX[hi0] && y[hi] == clickY[hi0]) {
+			hi--;
+			hi0--;
 		}
 
-	}
+		if (journal != null) journal.edit(lo, hi0+1, x, y, hi+1);
+		if (recordEdit) history.record(lo, hi0+1, hi+1, clickX, clickY, x, y, drawingEdit);
 
-	public int getPhase(Line line){
-		int[] x = {line.x1, line.x2};
-		int[] y = {line.y1, line.y2};
-		if (y[0] >= y[1]) return UNDEFINED;
-		double opposite = Math.abs(x[1] - x[0]);
-		double adjacent = Math.abs(y[1] - y[0]);
-		double degree = Math.toDegrees(Math.atan(opposite / adjacent));
-		if (degree <= PAUSEANGLE) return PAUSE;
-		if (side == LEFT) {
-			if (x[0] < x[1]){
-				return SHRINK;
-			} else if (x[0] > x[1]){
-				return GROWTH;
-			} else {
-				return UNDEFINED;
-			}
+		// keep the clicked vertices, analyze the snapped ones
+		if (clickX.length < nv) {
+			int capacity = Math.max(nv, 2 * clickX.length);
+			clickX = Arrays.copyOf(clickX, capacity);
+			clickY = Arrays.copyOf(clickY, capacity);
+			snapX = new int[capacity];
 		}
-		else if (side == RIGHT) {
-			if (x[0] > x[1]){
-				return SHRINK;
-			} else if (x[0] < x[1]){
-				return GROWTH;
-			} else {
-				return UNDEFINED;
+		System.arraycopy(clickX, hi0+1, clickX, hi+1, nv0 - hi0 - 1);
+		System.arraycopy(clickY, hi0+1, clickY, hi+1, nv0 - hi0 - 1);
+		System.arraycopy(x, lo, clickX, lo, hi - lo + 1);
+		System.arraycopy(y, lo, clickY, lo, hi - lo + 1);
+		int[] vx = x;
+		if (snap && image != null) {
+			if (ridgeField == null || (ridgeField.getProcessor() != null && ridgeField.getProcessor() != image.getProcessor())) {
+				ridgeField = new RidgeField(KymographTiles.of(image), 1.5);
+			}
+			for (int i=lo; i<=hi; i++) {
+				snapX[i] = ridgeField.snapX(x[i], y[i], side, SNAP_RADIUS);
 			}
+			vx = snapX;
+		}
+
+		// segments [changedFrom, changedTo) replace the old segments [changedFrom, changedToOld)
+		changedFrom = Math.max(lo-1, 0);
+		changedTo = Math.min(hi+1, m);
+		changedToOld = Math.min(hi0+1, m0);
+		prevNumLines = m0;
+		store.replaceVertices(lo, hi0+1, hi+1, vx, y);
+		store.replaceSegments(changedFrom, changedToOld, changedTo);
+
+		// overlay lines of replaced segments are dropped, new ones are created by draw()
+		if (overlayLines == null || overlayLines.length < m) {
+			overlayLines = Arrays.copyOf((overlayLines == null) ? new Line[0] : overlayLines, Math.max(m, 2 * m0));
+		}
+		for (int i=changedFrom; i<changedToOld; i++) {
+			if (overlayLines[i] != null) staleLines.add(overlayLines[i]);
+		}
+		System.arraycopy(overlayLines, changedToOld, overlayLines, changedTo, m0 - changedToOld);
+		Arrays.fill(overlayLines, changedFrom, changedTo, null);
+		Arrays.fill(overlayLines, m, Math.max(m, m0), null);
+
+		// segments still to be drawn, moved along with the edit
+		int delta = m - m0;
+		if (dirtyFrom < dirtyTo) {
+			dirtyFrom = (dirtyFrom < changedFrom) ? dirtyFrom
+				: (dirtyFrom >= changedToOld) ? dirtyFrom + delta : changedFrom;
+			dirtyTo = (dirtyTo <= changedFrom) ? dirtyTo
+				: (dirtyTo >= changedToOld) ? dirtyTo + delta : changedTo;
+			dirtyFrom = Math.min(dirtyFrom, changedFrom);
+			dirtyTo = Math.max(dirtyTo, changedTo);
 		}
 		else {
+			dirtyFrom = changedFrom;
+			dirtyTo = changedTo;
+		}
+		return true;
+	}
+
+	public int getPhase(Line line){
+		if (side != LEFT && side != RIGHT) {
 			IJ.error("Phase error: side not set");
-			int i = -2;
-			return i;
+			return -2;
 		}
-		
+		return TraceAnalysis.getPhase(line.x1, line.y1, line.x2, line.y2, side, PAUSEANGLE);
 	}
 
 	public String phase2String(double phase){
-		String phaseString = "";
-		switch ((int)phase)
-		{
-			case GROWTH: phaseString = "growth";
-				break;
-			case SHRINK: phaseString = "shrink";
-				break;
-			case PAUSE: phaseString = "pause";
-				break;
-			case UNDEFINED: phaseString = "undefined";
-				break;
-		}
-		return phaseString;
+		return ResultsCsv.phase2String(phase);
 	}
 
+	/**
+	 * Update the statistics of the segments changed by the last getLines() call, and of the pause-delimited runs
+	 * containing them. Runs outside the changed range are kept and only shifted.
+	 *
+	 * @return void.
+	 */
 	public void calculate() {
 
-		if (lines != null){
-			boolean horizontal = false;
-			for (int i=0; i<lines.length; i++) {
-				if (getPhase(lines[i]) == UNDEFINED) horizontal = true;
-			}
-			if (horizontal) IJ.log("Warning: undefined horizontal/upward line drawn");
-		}
-		int n = currentPolyline.getNCoordinates();
-		if (finished) n+=1;
-		if (n < 3) return;
-		n = lines.length;
+		int n = store.numSegments();
+		int n0 = prevNumLines;
+		int from = changedFrom;
+		int to = changedTo;
+		int delta = n - n0;
 
-		data = new double[14][n];
+		if (n == 0) {
+			store.replaceRuns(0, store.numRuns(), 0);
+			return;
+		}
+		if (n0 == 0) store.replaceRuns(0, store.numRuns(), 0);
 
-		for (int i=0; i<n; i++) {
-			Line line = lines[i];
-			int width = Math.abs(line.x2 - line.x1);
-			int height = line.y2 - line.y1;	
-			data[PHASE][i] = getPhase(line);
-			data[DIST][i] = width * XSCALE;
-			data[TIME][i] = height * YSCALE;
-			data[RATE][i] = data[DIST][i] / data[TIME][i];
+		if (side != LEFT && side != RIGHT) {
+			report("Phase error: side not set", true);
+			return;
+		}
+		int undefined = TraceAnalysis.classify(store, from, to, side, XSCALE, YSCALE, PAUSEANGLE);
+		if (undefined > 0) report("Warning: undefined horizontal/upward line drawn", false);
+
+		// first affected run: the old run holding the first changed segment (or the last run when appending)
+		int r1 = 0;
+		int s = 0;
+		boolean hasRuns = store.numRuns() > 0;
+		if (hasRuns) {
+			r1 = store.findRun(Math.min(from, n0-1));
+			s = store.runStart(r1);
 		}
 
-		starts = new ArrayList<Integer>();
-		data2 = new ArrayList<double[]>();
-	
-		int start = 0;
-		starts.add(start);
-
-		for (int i=0; i<n; i++) {
-			double[] d = new double[8];
-			if (data[PHASE][i] == PAUSE || i == n-1){
-				for (int j=start; j < i+1; j++) {
-					if (data[PHASE][j] == GROWTH){
-						d[TGROWTH] += data[TIME][j];
-						d[DGROWTH] += data[DIST][j];
-						if (j > 0 && data[PHASE][j-1] == SHRINK) d[NUMRES] += 1;
-					} else if (data[PHASE][j] == SHRINK) {
-						d[TSHRINK] += data[TIME][j];
-						d[DSHRINK] += data[DIST][j];
-						if (j > 0 && data[PHASE][j-1] == GROWTH) d[NUMCAT] += 1;
-					}
-				}
-				if (d[TGROWTH] != 0) d[FREQCAT] = d[NUMCAT]/d[TGROWTH];
-				if (d[TSHRINK] != 0) d[FREQRES] = d[NUMRES]/d[TSHRINK];
-				if (i < n-1) {
-					start = i+1;
-					starts.add(start);
-				}
-				data2.add(d);
+		// rebuilt range ends at the first pause after the changed segments, where run boundaries resynchronize
+		int e = n-1;
+		for (int i=to; i<n; i++) {
+			if (store.phase(i) == PAUSE) {
+				e = i;
+				break;
 			}
 		}
-		numMicrotubule = data2.size();
+		int eOld = (e >= to) ? e - delta : n0-1;
+		int r2 = hasRuns ? store.findRun(eOld) : -1;
+		if (s > eOld) r2 = r1 - 1;
+
+		int count = TraceAnalysis.runs(store, s, e, r1, r2+1);
+		if (delta != 0) store.shiftRuns(r1 + count, delta);
 		return;
 	}
 
 	public void display(){
-		if (lines == null) return;
-		int n = lines.length;
-		phase.setText(phase2String(data[PHASE][n-1]));
-		distance.setText(String.format("%.3f", data[DIST][n-1]));
-		time.setText(String.format("%.3f", data[TIME][n-1]));
-		rate.setText(String.format("%.3f", data[RATE][n-1]));
-		if (data2 == null) return;
-		double[] currData2 = new double[8];
-		if (data[PHASE][n-1] != PAUSE) currData2 = data2.get(numMicrotubule-1);
+		int n = store.numSegments();
+		if (n == 0) return;
+		phase.setText(phase2String(store.phase(n-1)));
+		distance.setText(String.format("%.3f", store.dist(n-1)));
+		time.setText(String.format("%.3f", store.time(n-1)));
+		rate.setText(String.format("%.3f", store.rate(n-1)));
+		if (store.numRuns() == 0) return;
+		double[] currData2 = currRun;
+		for (int k=0; k<SegmentStore.RUN_FIELDS; k++) {
+			currData2[k] = (store.phase(n-1) != PAUSE) ? store.run(store.numRuns()-1, k) : 0;
+		}
 		distanceGrowth.setText(String.format("%.3f", currData2[DGROWTH]));
 		distanceShrink.setText(String.format("%.3f", currData2[DSHRINK]));
 		timeGrowth.setText(String.format("%.3f", currData2[TGROWTH]));
@@ -917,78 +1728,94 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		}
 	}
 
-	public String output() {
-		String o = "";
-		if (lines != null && image.isVisible()) {
+	/**
+	 * Stream the statistics as CSV rows, one row per segment with the run summary on the first row of each run.
+	 * Rows are built in a reused buffer and written straight to the writer.
+	 *
+	 * @param out the writer to append the rows to, ideally buffered.
+	 *
+	 * @return void.
+	 */
+	public void output(Writer out) throws IOException {
+		if (store.numSegments() > 0 && image.isVisible()) {
 			String label = image.getTitle();
-			
-			for (int i=0; i<lines.length; i++) {
-				// Line l = lines[i];
-				o += String.valueOf(i+1) + "," + label + ",";
-				o += phase2String(data[PHASE][i]) + ",";
-				o += String.valueOf(data[DIST][i]) + ",";
-				o += String.valueOf(data[TIME][i]) + ",";
-				if (data[PHASE][i] == GROWTH) o += String.valueOf(data[RATE][i]) + ",,";
-				else if (data[PHASE][i] == SHRINK) o += "," + String.valueOf(data[RATE][i]) + ",";
-				else o += ",,";
-
-				if (data2 != null) {
-					if(starts.contains(i)){
-						double[] currData2 = data2.get(starts.indexOf(i));
-						o += String.valueOf(currData2[DGROWTH]) + ",";
-						o += String.valueOf(currData2[DSHRINK]) + ",";
-						o += String.valueOf(currData2[TGROWTH]) + ",";
-						o += String.valueOf(currData2[TSHRINK]) + ",";
-						if (currData2[DGROWTH] > 0) {
-							o += String.valueOf(currData2[NUMCAT]) + ",";
-						} else {
-							o += "-,";
-						}
-						if (currData2[DSHRINK] > 0) {
-							o += String.valueOf(currData2[NUMRES]) + ",";
-						} else {
-							o += "-,";
-						}
-						if (currData2[DGROWTH] > 0) {
-							o += String.valueOf(currData2[FREQCAT]) + ",";
-						} else {
-							o += "-,";
-						}
-						if (currData2[DSHRINK] > 0) {
-							o += String.valueOf(currData2[FREQRES]) + ",";
-						} else {
-							o += "-,";
-						}
-					}
-				}
-
-				o += "\n";
+			int run = 0;
+
+			for (int i=0; i<store.numSegments(); i++) {
+				StringBuilder o = row;
+				o.setLength(0);
+				int r = -1;
+				if (run < store.numRuns() && store.runStart(run) == i) r = run++;
+				ResultsCsv.appendRow(o, i+1, label, store, i, r);
+				writeRow(out, o);
 			}
-			o += "\n";
+			out.write('\n');
 		}
-		return o;
 	}
 
+	/**
+	 * Append the statistics to a columnar results file as one block.
+	 *
+	 * @param file the results file, created if needed.
+	 *
+	 * @return void.
+	 */
+	private void outputColumns(File file) throws IOException {
+		if (columnsBuilder == null) columnsBuilder = new ResultsColumns.Builder();
+		columnsBuilder.clear();
+		synchronized (analysisLock) {
+			columnsBuilder.add(image.getTitle(), store);
+		}
+		columnsBuilder.appendTo(file);
+	}
+
+	private void writeRow(Writer out, StringBuilder o) throws IOException {
+		int len = o.length();
+		if (rowChars.length < len) rowChars = new char[Math.max(len, 2 * rowChars.length)];
+		o.getChars(0, len, rowChars, 0);
+		out.write(rowChars, 0, len);
+	}
+
+	/**
+	 * Update the overlay. After edits only the segments replaced since the last draw are removed and added, and only
+	 * their bounding rectangle is repainted; the whole overlay is rebuilt only when it is not in sync with the
+	 * segments (first draw, after a reset or after being shown again).
+	 *
+	 * @return void.
+	 */
 	private void draw() {
 		
-		if (lines != null) {
+		int n = store.numSegments();
+		if (n > 0 || !staleLines.isEmpty()) {
 
 			if (showOverlay) {
 
-				overlayRois = new Overlay();
-
-				for (int i=0; i<lines.length; i++) {
-					Line l = lines[i];
-					switch (getPhase(l)) {
-						case GROWTH: l.setStrokeColor(Color.green); break;
-						case SHRINK: l.setStrokeColor(Color.red); break;
-						case PAUSE: l.setStrokeColor(Color.blue); break;
-						case UNDEFINED: l.setStrokeColor(new Color(0, 0, 0, 0.0f)); break;
+				if (!overlayValid || overlayRois == null || image.getOverlay() != overlayRois) {
+					overlayRois = new Overlay();
+					for (int i=0; i<n; i++) {
+						overlayRois.add(overlayLine(i));
+					}
+					image.setOverlay(overlayRois);
+					image.updateAndDraw();
+					overlayValid = true;
+				}
+				else {
+					Rectangle dirty = null;
+					for (Line l : staleLines) {
+						overlayRois.remove(l);
+						dirty = union(dirty, l.getBounds());
+					}
+					for (int i=dirtyFrom; i<Math.min(dirtyTo, n); i++) {
+						if (overlayLines[i] != null) continue;
+						Line l = overlayLine(i);
+						overlayRois.add(l);
+						dirty = union(dirty, l.getBounds());
+					}
+					if (dirty != null) {
+						int pad = (int) Math.ceil(Line.getWidth()) + 2;
+						image.draw(dirty.x - pad, dirty.y - pad, dirty.width + 2*pad, dirty.height + 2*pad);
 					}
-					overlayRois.add(l);
 				}
-				image.setOverlay(overlayRois);
-				image.updateAndDraw();
 				image.changes = true;
 
 			} else {
@@ -996,12 +1823,47 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 				if (overlayRois != null) {
 					overlayRois.clear();
 				}
+				overlayValid = false;
 				image.updateAndDraw();
 				image.changes = false;
 
 			}
 		}
+		staleLines.clear();
+		dirtyFrom = dirtyTo = 0;
+
+	}
+
+	/**
+	 * Get the overlay line of a segment, creating it on first use.
+	 *
+	 * @param i the index of the segment.
+	 *
+	 * @return the line, colored by phase.
+	 */
+	private Line overlayLine(int i) {
+		Line l = overlayLines[i];
+		if (l == null) {
+			l = new Line(store.x(i), store.y(i), store.x(i+1), store.y(i+1));
+			setPhaseColor(l, store.phase(i));
+			overlayLines[i] = l;
+		}
+		return l;
+	}
+
+	private void setPhaseColor(Line l, int phase) {
+		switch (phase) {
+			case GROWTH: l.setStrokeColor(Color.green); break;
+			case SHRINK: l.setStrokeColor(Color.red); break;
+			case PAUSE: l.setStrokeColor(Color.blue); break;
+			case UNDEFINED: l.setStrokeColor(new Color(0, 0, 0, 0.0f)); break;
+		}
+	}
 
+	private Rectangle union(Rectangle dirty, Rectangle bounds) {
+		if (dirty == null) return bounds;
+		dirty.add(bounds);
+		return dirty;
 	}
 
 	/***************************************************************************************
@@ -1017,54 +1879,73 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	@Override
 	public void roiModified(ImagePlus imp, int id) {
 		
+		// a polyline drawn on another open kymograph switches to it, other images are left alone
+		if (imp != null && imp != image && id != DELETED && isKymograph(imp) && imp.getRoi() != null
+				&& imp.getRoi().getType() == Roi.POLYLINE) {
+			activate(imp);
+		}
 		if(imp == image) {
-			
-			String type = "UNKNOWN";
-			
-	        switch (id) {
-		        case CREATED: type="CREATED";
-		        	break;
-		        case MOVED: type="MOVED";
-		        	break;
-		        case MODIFIED: type="MODIFIED";
-		        	break;
-		        case EXTENDED: type="EXTENDED";
-		        	break;
-		        case COMPLETED: type="COMPLETED";
-		        	break;
-		        case DELETED: type="DELETED";
-		        	break;
+			long t = Metrics.start(), a = Metrics.allocated();
+			try {
+				roiEvent(imp, id);
+			} finally {
+				Metrics.ROI_MODIFIED.end(t, a);
 			}
+		}
+	}
+
+	/**
+	 * Handle an event of the ROI of the analyzed image.
+	 *
+	 * @param imp the analyzed image.
+	 * @param id the type of the event.
+	 *
+	 * @return void.
+	 */
+	private void roiEvent(ImagePlus imp, int id) {
+		String type = "UNKNOWN";
+		
+        switch (id) {
+	        case CREATED: type="CREATED";
+	        	break;
+	        case MOVED: type="MOVED";
+	        	break;
+	        case MODIFIED: type="MODIFIED";
+	        	break;
+	        case EXTENDED: type="EXTENDED";
+	        	break;
+	        case COMPLETED: type="COMPLETED";
+	        	break;
+	        case DELETED: type="DELETED";
+	        	break;
+		}
 
-			if (id != MODIFIED) IJ.log("ROI event: " + type);
+		if (id != MODIFIED) IJ.log("ROI event: " + type);
 
-			if (id == CREATED) {
-				finished = false;
-			}
-	        else if (id == EXTENDED || id == MODIFIED || id == COMPLETED || id == MOVED) {
-	        	Roi currentRoi = imp.getRoi();	        	
-	        	if(currentRoi != null) {
-					if (currentRoi.getType() == Roi.POLYLINE) {
-						if (id == COMPLETED) finished = true;
-						currentPolyline = (PolygonRoi) currentRoi;
-						getLines();
-						calculate();
-						display();
-						draw();
-					}
-					else {
-						IJ.error("RoiListener error: please use polyline tool");
-					}
+		if (id == CREATED) {
+			finished = false;
+		}
+        else if (id == EXTENDED || id == MODIFIED || id == COMPLETED || id == MOVED) {
+        	Roi currentRoi = imp.getRoi();	        	
+        	if(currentRoi != null) {
+				if (currentRoi.getType() == Roi.POLYLINE) {
+					if (id == COMPLETED) finished = true;
+					currentPolyline = (PolygonRoi) currentRoi;
+					requestAnalysis(true);
+				}
+				else {
+					IJ.error("RoiListener error: please use polyline tool");
 				}
 			}
-			else if (id == DELETED) {
-				redraw();
-				IJ.log("Start new drawing");
-			}
-	        else {
-	        	IJ.log("Did not record ROI event: " + type);
-	        }	
 		}
+		else if (id == DELETED) {
+			if (keepSegments) return;
+			redraw();
+			IJ.log("Start new drawing");
+		}
+        else {
+        	IJ.log("Did not record ROI event: " + type);
+        }	
 	}
 	
 	/**
@@ -1073,14 +1954,30 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	 * @param ip the image that was updated
 	 */
 	@Override
-	public void imageUpdated(ImagePlus ip) {}
+	public void imageUpdated(ImagePlus ip) {
+		if (ip == image && ridgeField != null) {
+			ridgeField.invalidate();
+		}
+	}
 	
 	@Override
 	public void imageClosed(ImagePlus ip) {
 		IJ.log("Image closed");
+		EditJournal closed = null;
+		synchronized (analysisLock) {
+			KymographSession s = sessions.remove(ip);
+			if (s != null) closed = s.journal;
+			if (ip == image) {
+				generation++;
+				pendingPolyline.set(null);
+				image = null;
+				closed = journal;
+				journal = null;
+			}
+		}
+		if (closed != null) closed.close(true);
+		if (image == null) clearDisplay();
 		if (WindowManager.getImageCount() == 0) {
-			image = null;
-			clearDisplay();
 			Roi.removeRoiListener(this);
 		}
 	}
@@ -1090,14 +1987,9 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 		IJ.log("Image opened");
 		if (WindowManager.getImageCount() == 1) {
 			Roi.addRoiListener(this);
-			// get the associated image parameters
-			image = IJ.getImage();
-			imageDirectory = IJ.getDir("image");
-			IJ.log(imageDirectory);
-			window = image.getWindow();
-			canvas = image.getCanvas();
-			redraw();
 		}
+		// watched, but only analyzed once a polyline is drawn on it
+		if (arg0.getWindow() != null) arg0.getWindow().addWindowFocusListener(this);
 	}
 
 	/**
@@ -1133,6 +2025,17 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 	public void windowClosed(WindowEvent e) {
 		IJ.log("Plugin closed");
 		removeListeners();
+		watchWindows(false);
+		analysisExecutor.shutdownNow();
+		List<EditJournal> journals = new ArrayList<EditJournal>();
+		synchronized (analysisLock) {
+			if (journal != null) journals.add(journal);
+			for (KymographSession s : sessions.values()) {
+				if (s.journal != null) journals.add(s.journal);
+			}
+			journal = null;
+		}
+		for (EditJournal j : journals) j.close(true);
 		frame = null;
 	}
 
@@ -1155,4 +2058,47 @@ public class Microtubule_Kymograph_Analysis extends PlugInFrame implements PlugI
 
 	@Override
 	public void mouseReleased(MouseEvent arg0) {}
+
+	/**
+	 * Notified by WindowFocusListener when the window of an open image is activated. Switches to its session if it
+	 * has one; other images are only analyzed once a polyline is drawn on them.
+	 * 
+	 * @param e the WindowEvent corresponding to the activation
+	 */
+	@Override
+	public void windowGainedFocus(WindowEvent e) {
+		if (e.getWindow() instanceof ImageWindow) {
+			ImagePlus imp = ((ImageWindow) e.getWindow()).getImagePlus();
+			boolean known;
+			synchronized (analysisLock) {
+				known = sessions.containsKey(imp);
+			}
+			if (known) activate(imp);
+		}
+	}
+
+	@Override
+	public void windowLostFocus(WindowEvent e) {}
+
+	/**
+	 * Coordinates of a polyline copied on the event dispatch thread for the background analysis.
+	 */
+	private static final class PolylineSnapshot {
+		final int[] x;
+		final int[] y;
+		final int n;
+		final int generation;
+		// a user edit, kept in the undo history
+		final boolean record;
+		final boolean drawing;
+
+		PolylineSnapshot(int[] x, int[] y, int n, int generation, boolean record, boolean drawing) {
+			this.x = x;
+			this.y = y;
+			this.n = n;
+			this.generation = generation;
+			this.record = record;
+			this.drawing = drawing;
+		}
+	}
 }
@@ -0,0 +1,330 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+
+
+/**
+ * Microtubule_Kymograph_Batch.java
+ * Purpose: headless batch analysis of the traces saved with a directory of kymographs
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class Microtubule_Kymograph_Batch implements PlugIn {
+
+
+	private static final String[] SIDES = {"Left", "Right", "Overlay colors"};
+	private static final ThreadLocal<SegmentStore> STORE = ThreadLocal.withInitial(SegmentStore::new);
+	// files analyzed ahead of the one being written, per thread
+	private static final int IN_FLIGHT_PER_THREAD = 2;
+
+
+	// settings
+	private String directory;
+	private int side = KymographTraces.SIDE_FROM_COLORS;
+	private double XSCALE = 0.08;
+	private double YSCALE = 2.5;
+	private double PAUSEANGLE = 3;
+	private String outputName = "batch_results.csv";
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private double sweepTo = 0;
+	private int sweepSteps = 100;
+	private boolean fitModel = false;
+
+
+	/**
+	 * Runs the batch mode. Asks for the settings (or reads them from the macro options) and analyzes the directory.
+	 *
+	 * @param arg not used.
+	 *
+	 * @return void.
+	 */
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("Microtubule Kymograph Batch");
+		gd.addDirectoryField("Directory", directory);
+		gd.addChoice("Side", SIDES, SIDES[2]);
+		gd.addNumericField("X-scale(um/pixel)", XSCALE, 3);
+		gd.addNumericField("Y-scale(sec/pixel)", YSCALE, 3);
+		gd.addNumericField("Pause Angle(deg)", PAUSEANGLE, 1);
+		gd.addStringField("Output file", outputName, 20);
+		gd.addNumericField("Threads", threads, 0);
+		gd.addMessage("Pause angle sweep, from the Pause Angle (0 for none):");
+		gd.addNumericField("Sweep to(deg)", sweepTo, 1);
+		gd.addNumericField("Sweep steps", sweepSteps, 0);
+		gd.addCheckbox("Fit dynamic instability model", fitModel);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		directory = gd.getNextString();
+		int choice = gd.getNextChoiceIndex();
+		side = (choice == 2) ? KymographTraces.SIDE_FROM_COLORS : choice;
+		XSCALE = gd.getNextNumber();
+		YSCALE = gd.getNextNumber();
+		PAUSEANGLE = gd.getNextNumber();
+		outputName = gd.getNextString();
+		threads = Math.max(1, (int) gd.getNextNumber());
+		sweepTo = gd.getNextNumber();
+		sweepSteps = (int) gd.getNextNumber();
+		fitModel = gd.getNextBoolean();
+		if (XSCALE <= 0 || YSCALE <= 0) {
+			IJ.error("Scales must be positive");
+			return;
+		}
+		if (PAUSEANGLE < 0 || PAUSEANGLE >= 90) {
+			IJ.error("Pause Angle must be within 0 (inclusive) to 90 (exclusive) degree");
+			return;
+		}
+		if (sweepTo > 0 && (sweepTo <= PAUSEANGLE || sweepTo >= 90 || sweepSteps < 2)) {
+			IJ.error("The sweep must end above the Pause Angle and below 90 degree, in at least 2 steps");
+			return;
+		}
+		process();
+	}
+
+	/**
+	 * Runs the batch mode from the command line.
+	 *
+	 * @param args directory [left|right|colors] [x-scale] [y-scale] [pause angle] [output file] [sweep to]
+	 * [sweep steps] [model]
+	 *
+	 * @return void.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: Microtubule_Kymograph_Batch <directory> [left|right|colors] [x-scale] [y-scale] "
+				+ "[pause angle] [output file] [sweep to] [sweep steps] [model]");
+			System.exit(1);
+		}
+		Microtubule_Kymograph_Batch batch = new Microtubule_Kymograph_Batch();
+		batch.directory = args[0];
+		if (args.length > 1) {
+			if (args[1].equalsIgnoreCase("left")) batch.side = TraceAnalysis.LEFT;
+			else if (args[1].equalsIgnoreCase("right")) batch.side = TraceAnalysis.RIGHT;
+		}
+		if (args.length > 2) batch.XSCALE = Double.parseDouble(args[2]);
+		if (args.length > 3) batch.YSCALE = Double.parseDouble(args[3]);
+		if (args.length > 4) batch.PAUSEANGLE = Double.parseDouble(args[4]);
+		if (args.length > 5) batch.outputName = args[5];
+		if (args.length > 6) batch.sweepTo = Double.parseDouble(args[6]);
+		if (args.length > 7) batch.sweepSteps = Integer.parseInt(args[7]);
+		if (args.length > 8) batch.fitModel = args[8].equalsIgnoreCase("model");
+		batch.process();
+	}
+
+	/**
+	 * Analyze every kymograph of the directory on a work-stealing pool and write one consolidated results file.
+	 * Rows are written in file order, so the output does not depend on the number of threads. At most
+	 * IN_FLIGHT_PER_THREAD files per thread are analyzed ahead of the one being written, so the results held in
+	 * memory do not grow with the directory. With a sweep, the
+	 * pooled statistics at each pause angle of the sweep are also written to a second file, and the fitted model
+	 * of dynamic instability to a third one.
+	 *
+	 * @return void.
+	 */
+	public void process() {
+		File dir = new File(directory);
+		if (!dir.isDirectory()) {
+			IJ.error("Not a directory: " + directory);
+			return;
+		}
+		File outFile = new File(dir, outputName);
+		List<File> files = KymographTraces.listFiles(dir);
+		files.remove(outFile);
+		boolean columns = outputName.endsWith(ResultsColumns.EXTENSION);
+		double[] angles = (sweepTo > 0) ? PauseAngleSweep.range(PAUSEANGLE, sweepTo, sweepSteps) : null;
+		PauseAngleSweep sweep = (angles != null) ? new PauseAngleSweep(angles, XSCALE, YSCALE) : null;
+		DynamicInstabilityModel model = fitModel ? new DynamicInstabilityModel() : null;
+		IJ.log("Batch: " + files.size() + " files in " + dir.getPath());
+
+		long startTime = System.nanoTime();
+		long numTraces = 0;
+		long numSegments = 0;
+		int numImages = 0;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			ArrayDeque<ForkJoinTask<FileResult>> tasks = new ArrayDeque<ForkJoinTask<FileResult>>();
+			int window = IN_FLIGHT_PER_THREAD * threads;
+			int next = 0;
+			for (; next < Math.min(window, files.size()); next++) {
+				final File f = files.get(next);
+				tasks.add(pool.submit(() -> analyzeFile(f, columns, angles)));
+			}
+			if (columns) Files.deleteIfExists(outFile.toPath());
+			try (BufferedWriter out = columns ? null : new BufferedWriter(new FileWriter(outFile))) {
+				if (out != null) {
+					out.write(ResultsCsv.HEADER);
+					out.newLine();
+				}
+				while (!tasks.isEmpty()) {
+					FileResult result = tasks.poll().join();
+					if (next < files.size()) {
+						final File f = files.get(next++);
+						tasks.add(pool.submit(() -> analyzeFile(f, columns, angles)));
+					}
+					if (result.error != null) {
+						IJ.log("Skipped " + result.name + ": " + result.error);
+						continue;
+					}
+					// one block per image
+					if (columns) {
+						if (result.block.numSegments() > 0) result.block.appendTo(outFile);
+					}
+					else out.append(result.rows);
+					numImages++;
+					numTraces += result.traces;
+					numSegments += result.segments;
+					if (sweep != null) sweep.merge(result.sweep);
+					if (model != null) model.merge(result.model);
+				}
+			}
+		} catch (IOException e) {
+			IJ.error("ERROR: exception occoured" + e);
+			return;
+		} finally {
+			pool.shutdown();
+		}
+
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		IJ.log(String.format("Batch: %d images, %d traces, %d segments in %.2f s (%.1f images/s, %.1f segments/s)",
+			numImages, numTraces, numSegments, seconds, numImages / seconds, numSegments / seconds));
+		IJ.log("Results saved to: " + outFile.getPath());
+		if (sweep != null) writeSweep(dir, sweep);
+		if (model != null) writeModel(dir, model);
+	}
+
+	/**
+	 * @return the file next to the results file named after it with a suffix, e.g. <output name>_sweep.csv.
+	 */
+	private File companion(File dir, String suffix) {
+		int dot = outputName.lastIndexOf('.');
+		return new File(dir, ((dot > 0) ? outputName.substring(0, dot) : outputName) + suffix);
+	}
+
+	/**
+	 * Write the statistics of each pause angle of the sweep next to the results file, as <output name>_sweep.csv.
+	 *
+	 * @param dir the directory.
+	 * @param sweep the sweep of all traces.
+	 *
+	 * @return void.
+	 */
+	private void writeSweep(File dir, PauseAngleSweep sweep) {
+		File sweepFile = companion(dir, "_sweep.csv");
+		StringBuilder rows = new StringBuilder(PauseAngleSweep.HEADER).append('\n');
+		sweep.appendRows(rows);
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(sweepFile))) {
+			out.append(rows);
+		} catch (IOException e) {
+			IJ.error("ERROR: exception occoured" + e);
+			return;
+		}
+		IJ.log(String.format("Sweep: %d pause angles from %.2f to %.2f saved to: %s", sweep.numAngles(),
+			sweep.angle(0), sweep.angle(sweep.numAngles() - 1), sweepFile.getPath()));
+	}
+
+	/**
+	 * Write the rates and velocities of the fitted model next to the results file, as <output name>_model.csv.
+	 *
+	 * @param dir the directory.
+	 * @param model the model of all traces.
+	 *
+	 * @return void.
+	 */
+	private void writeModel(File dir, DynamicInstabilityModel model) {
+		File modelFile = companion(dir, "_model.csv");
+		StringBuilder rows = new StringBuilder(DynamicInstabilityModel.HEADER).append('\n');
+		model.appendRows(rows);
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(modelFile))) {
+			out.append(rows);
+		} catch (IOException e) {
+			IJ.error("ERROR: exception occoured" + e);
+			return;
+		}
+		IJ.log(String.format("Model: %d traces, catastrophe %.5f /s, rescue %.5f /s, log-likelihood %.1f",
+			model.traces(), model.rate(TraceAnalysis.GROWTH, TraceAnalysis.SHRINK),
+			model.rate(TraceAnalysis.SHRINK, TraceAnalysis.GROWTH), model.logLikelihood()));
+		IJ.log("Model saved to: " + modelFile.getPath());
+	}
+
+	/**
+	 * Analyze the traces saved with one kymograph.
+	 *
+	 * @param file the image or RoiManager zip.
+	 * @param columns true to collect a results block instead of CSV rows.
+	 * @param angles the pause angles of the sweep, or null for none.
+	 *
+	 * @return the CSV rows or block, sweep, model and counts.
+	 */
+	private FileResult analyzeFile(File file, boolean columns, double[] angles) {
+		FileResult result = new FileResult(file.getName(), columns);
+		if (angles != null) result.sweep = new PauseAngleSweep(angles, XSCALE, YSCALE);
+		if (fitModel) result.model = new DynamicInstabilityModel();
+		try {
+			Roi[] rois = KymographTraces.readRois(file);
+			for (Trace trace : KymographTraces.fromRois(label(file), rois, side)) {
+				if (trace.segments() == 0) continue;
+				SegmentStore store = STORE.get();
+				TraceAnalysis.analyze(trace.x, trace.y, trace.n, trace.side, XSCALE, YSCALE, PAUSEANGLE, store);
+				if (columns) result.block.add(trace.label, store);
+				else ResultsCsv.appendTrace(result.rows, trace.label, store);
+				if (result.sweep != null) result.sweep.add(trace.x, trace.y, trace.n, trace.side);
+				if (result.model != null) result.model.add(store, trace.side, XSCALE);
+				result.traces++;
+				result.segments += trace.segments();
+			}
+		} catch (IOException | RuntimeException e) {
+			result.error = e.toString();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the name of the file, or of its image if it is an overlay sidecar, so the traces are labelled the same
+	 * whichever of the two was read.
+	 */
+	private static String label(File file) {
+		String name = file.getName();
+		if (!name.endsWith(OverlaySidecar.SUFFIX)) return name;
+		String base = name.substring(0, name.length() - OverlaySidecar.SUFFIX.length());
+		for (String extension : new String[] {".tif", ".tiff"}) {
+			if (new File(file.getParentFile(), base + extension).isFile()) return base + extension;
+		}
+		return name;
+	}
+
+	/**
+	 * Rows or block, sweep, model and counts produced for one file.
+	 */
+	private static final class FileResult {
+		final String name;
+		final StringBuilder rows;
+		final ResultsColumns.Builder block;
+		PauseAngleSweep sweep;
+		DynamicInstabilityModel model;
+		int traces;
+		int segments;
+		String error;
+
+		FileResult(String name, boolean columns) {
+			this.name = name;
+			this.rows = columns ? null : new StringBuilder();
+			this.block = columns ? new ResultsColumns.Builder() : null;
+		}
+	}
+}
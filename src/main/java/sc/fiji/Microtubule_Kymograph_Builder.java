@@ -0,0 +1,142 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.awt.Polygon;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+
+
+/**
+ * Microtubule_Kymograph_Builder.java
+ * Purpose: build a kymograph from the line or polyline drawn on a time-lapse stack, and trace it in the analysis
+ * window or detect and analyze its traces right away, without saving it first
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class Microtubule_Kymograph_Builder implements PlugIn {
+
+
+	private static final String[] OUTPUTS = {"Trace in the analysis window", "Detect traces and append results"};
+	private static final String[] SIDES = {"Left", "Right"};
+
+
+	// settings
+	private static int output;
+	private static int side = TraceAnalysis.RIGHT;
+	private static double PAUSEANGLE = 3;
+	private static String resultsPath = "";
+	private static int threads = Runtime.getRuntime().availableProcessors();
+
+
+	/**
+	 * Runs the builder on the current image. Asks for the settings (or reads them from the macro options).
+	 *
+	 * @param arg not used.
+	 *
+	 * @return void.
+	 */
+	public void run(String arg) {
+		ImagePlus imp = IJ.getImage();
+		Roi roi = imp.getRoi();
+		if (roi == null || !roi.isLine() || roi.getType() == Roi.ANGLE) {
+			IJ.error("Please draw a straight line or a polyline along the microtubule");
+			return;
+		}
+		if (imp.getNFrames() < 2 && imp.getStackSize() < 2) {
+			IJ.error("A time-lapse stack is needed");
+			return;
+		}
+		GenericDialog gd = new GenericDialog("Microtubule Kymograph Builder");
+		gd.addChoice("Output", OUTPUTS, OUTPUTS[output]);
+		gd.addNumericField("Threads", threads, 0);
+		gd.addMessage("Detected traces:");
+		gd.addChoice("Side", SIDES, SIDES[side]);
+		gd.addNumericField("Pause Angle(deg)", PAUSEANGLE, 1);
+		gd.addFileField("Results file", resultsPath, 30);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		output = gd.getNextChoiceIndex();
+		threads = Math.max(1, (int) gd.getNextNumber());
+		side = gd.getNextChoiceIndex();
+		PAUSEANGLE = gd.getNextNumber();
+		resultsPath = gd.getNextString();
+		if (PAUSEANGLE < 0 || PAUSEANGLE >= 90) {
+			IJ.error("Pause Angle must be within 0 (inclusive) to 90 (exclusive) degree");
+			return;
+		}
+
+		long startTime = System.nanoTime();
+		ImagePlus kymograph;
+		try {
+			kymograph = KymographBuilder.build(imp, roi, threads);
+		} catch (IllegalArgumentException e) {
+			IJ.error(e.getMessage());
+			return;
+		}
+		IJ.log(String.format("Kymograph of %s: %d x %d in %.2f s", imp.getTitle(), kymograph.getWidth(),
+			kymograph.getHeight(), (System.nanoTime() - startTime) / 1e9));
+
+		if (output == 0) {
+			kymograph.show();
+			if (WindowManager.getFrame("Microtubule Kymograph Analysis") == null) {
+				IJ.runPlugIn(Microtubule_Kymograph_Analysis.class.getName(), "");
+			}
+		}
+		else {
+			detect(kymograph);
+		}
+	}
+
+	/**
+	 * Detect the traces of a kymograph and append their statistics to the results file.
+	 *
+	 * @param kymograph the kymograph, calibrated in microns and seconds.
+	 *
+	 * @return void.
+	 */
+	private void detect(ImagePlus kymograph) {
+		if (resultsPath.isEmpty()) {
+			IJ.error("Please choose a results file");
+			return;
+		}
+		double[] scales = KymographAnalyzer.calibratedScales(kymograph);
+		if (scales == null) {
+			IJ.error("The stack is not calibrated in microns and seconds, please set its pixel size and frame "
+				+ "interval (Image > Properties...) or trace the kymograph in the analysis window");
+			return;
+		}
+		double xscale = scales[0];
+		double yscale = scales[1];
+		List<PolygonRoi> traces = new TraceDetector().detect(KymographTiles.of(kymograph.getProcessor()), side);
+		StringBuilder rows = new StringBuilder();
+		SegmentStore store = new SegmentStore();
+		int segments = 0;
+		for (PolygonRoi roi : traces) {
+			Polygon p = roi.getPolygon();
+			Trace trace = new Trace(kymograph.getTitle(), p.xpoints, p.ypoints, p.npoints, side);
+			TraceAnalysis.analyze(trace.x, trace.y, trace.n, trace.side, xscale, yscale, PAUSEANGLE, store);
+			ResultsCsv.appendTrace(rows, trace.label, store);
+			segments += trace.segments();
+		}
+		try {
+			ResultsCsv.appendTo(new File(resultsPath), rows);
+		} catch (IOException e) {
+			IJ.error("ERROR: exception occoured" + e);
+			return;
+		}
+		IJ.log(traces.size() + " traces (" + segments + " segments) appended to: " + resultsPath);
+	}
+}
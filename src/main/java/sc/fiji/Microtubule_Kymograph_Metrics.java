@@ -0,0 +1,57 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+
+/**
+ * Microtubule_Kymograph_Metrics.java
+ * Purpose: switch the latency and allocation metrics on or off, and dump those of the current session to a file
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class Microtubule_Kymograph_Metrics implements PlugIn {
+
+
+	private static String path = new File(System.getProperty("user.home"), "kymograph-metrics.csv").getPath();
+	private static boolean reset;
+
+
+	/**
+	 * Runs the dump. Asks for the output file and the metrics to keep measuring (or reads them from the macro
+	 * options).
+	 *
+	 * @param arg not used.
+	 *
+	 * @return void.
+	 */
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("Microtubule Kymograph Metrics");
+		gd.addFileField("Output file", path, 30);
+		gd.addCheckbox("Reset after dump", reset);
+		gd.addCheckbox("Time operations", Metrics.isTiming());
+		gd.addCheckbox("Count allocated bytes (JVM-wide)", Metrics.isCountingAllocations());
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		path = gd.getNextString();
+		reset = gd.getNextBoolean();
+		boolean timing = gd.getNextBoolean();
+		Metrics.setEnabled(timing, gd.getNextBoolean());
+		if (!timing) IJ.log("Metrics off");
+		try {
+			Metrics.dump(new File(path), reset);
+			IJ.log("Metrics saved to: " + path);
+		} catch (IOException e) {
+			IJ.error("ERROR: exception occoured" + e);
+		}
+	}
+}
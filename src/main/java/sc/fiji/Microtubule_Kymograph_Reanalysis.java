@@ -0,0 +1,233 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Pattern;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.plugin.PlugIn;
+
+
+/**
+ * Microtubule_Kymograph_Reanalysis.java
+ * Purpose: regenerate the results files written by Save New under new scales and pause angle, from the traces
+ * saved with them (the overlay of the .tif or the sidecar), so a change of calibration does not mean tracing again.
+ * Only the overlays are read, never the pixels.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class Microtubule_Kymograph_Reanalysis implements PlugIn {
+
+
+	private static final String[] SIDES = {"Left", "Right", "Overlay colors"};
+	// the time stamp Save New adds to the image title
+	private static final Pattern TIMESTAMP = Pattern.compile("\\.\\d\\d\\.\\d\\d\\.\\d\\d\\.\\d\\d$");
+	private static final ThreadLocal<SegmentStore> STORE = ThreadLocal.withInitial(SegmentStore::new);
+
+
+	// settings
+	private String directory;
+	private int side = KymographTraces.SIDE_FROM_COLORS;
+	private double XSCALE = 0.08;
+	private double YSCALE = 2.5;
+	private double PAUSEANGLE = 3;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+
+	/**
+	 * Runs the re-analysis. Asks for the settings (or reads them from the macro options) and regenerates the results
+	 * files of the directory.
+	 *
+	 * @param arg not used.
+	 *
+	 * @return void.
+	 */
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("Microtubule Kymograph Reanalysis");
+		gd.addDirectoryField("Directory", directory);
+		gd.addChoice("Side", SIDES, SIDES[2]);
+		gd.addNumericField("X-scale(um/pixel)", XSCALE, 3);
+		gd.addNumericField("Y-scale(sec/pixel)", YSCALE, 3);
+		gd.addNumericField("Pause Angle(deg)", PAUSEANGLE, 1);
+		gd.addNumericField("Threads", threads, 0);
+		gd.addMessage("The results files saved with an overlay are overwritten.");
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		directory = gd.getNextString();
+		int choice = gd.getNextChoiceIndex();
+		side = (choice == 2) ? KymographTraces.SIDE_FROM_COLORS : choice;
+		XSCALE = gd.getNextNumber();
+		YSCALE = gd.getNextNumber();
+		PAUSEANGLE = gd.getNextNumber();
+		threads = Math.max(1, (int) gd.getNextNumber());
+		if (XSCALE <= 0 || YSCALE <= 0) {
+			IJ.error("Scales must be positive");
+			return;
+		}
+		if (PAUSEANGLE < 0 || PAUSEANGLE >= 90) {
+			IJ.error("Pause Angle must be within 0 (inclusive) to 90 (exclusive) degree");
+			return;
+		}
+		process();
+	}
+
+	/**
+	 * Runs the re-analysis from the command line.
+	 *
+	 * @param args directory [left|right|colors] [x-scale] [y-scale] [pause angle]
+	 *
+	 * @return void.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: Microtubule_Kymograph_Reanalysis <directory> [left|right|colors] [x-scale] "
+				+ "[y-scale] [pause angle]");
+			System.exit(1);
+		}
+		Microtubule_Kymograph_Reanalysis reanalysis = new Microtubule_Kymograph_Reanalysis();
+		reanalysis.directory = args[0];
+		if (args.length > 1) {
+			if (args[1].equalsIgnoreCase("left")) reanalysis.side = TraceAnalysis.LEFT;
+			else if (args[1].equalsIgnoreCase("right")) reanalysis.side = TraceAnalysis.RIGHT;
+		}
+		if (args.length > 2) reanalysis.XSCALE = Double.parseDouble(args[2]);
+		if (args.length > 3) reanalysis.YSCALE = Double.parseDouble(args[3]);
+		if (args.length > 4) reanalysis.PAUSEANGLE = Double.parseDouble(args[4]);
+		reanalysis.process();
+	}
+
+	/**
+	 * Regenerate every results file of the directory that has its traces saved next to it, on a work-stealing
+	 * pool. Each file is replaced at once, so an interrupted run leaves every file either old or new.
+	 *
+	 * @return void.
+	 */
+	public void process() {
+		File dir = new File(directory);
+		if (!dir.isDirectory()) {
+			IJ.error("Not a directory: " + directory);
+			return;
+		}
+		List<File> files = ResultsAggregator.listResults(dir);
+		IJ.log("Reanalysis: " + files.size() + " results files in " + dir.getPath());
+
+		long startTime = System.nanoTime();
+		int numFiles = 0;
+		long numTraces = 0;
+		long numSegments = 0;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<ForkJoinTask<FileResult>> tasks = new ArrayList<ForkJoinTask<FileResult>>();
+			for (final File f : files) {
+				tasks.add(pool.submit(() -> reanalyze(f)));
+			}
+			for (ForkJoinTask<FileResult> task : tasks) {
+				FileResult result = task.join();
+				if (result.error != null) {
+					IJ.log("Skipped " + result.name + ": " + result.error);
+					continue;
+				}
+				numFiles++;
+				numTraces += result.traces;
+				numSegments += result.segments;
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		IJ.log(String.format("Reanalysis: %d files, %d traces, %d segments in %.2f s (%.1f traces/s)", numFiles,
+			numTraces, numSegments, seconds, numTraces / seconds));
+	}
+
+	/**
+	 * Regenerate one results file from the traces of the image or sidecar of the same name.
+	 *
+	 * @param file the .csv or .mkc results file.
+	 *
+	 * @return the counts, or the reason the file was left as it is.
+	 */
+	private FileResult reanalyze(File file) {
+		FileResult result = new FileResult(file.getName());
+		String name = file.getName();
+		String base = name.substring(0, name.lastIndexOf('.'));
+		File source = OverlaySidecar.of(new File(file.getParentFile(), base + ".tif").getPath());
+		if (!source.isFile()) source = new File(file.getParentFile(), base + ".tif");
+		if (!source.isFile()) {
+			result.error = "no overlay saved with it";
+			return result;
+		}
+		// the label of the traces is the image title, before the time stamp of Save New
+		String label = TIMESTAMP.matcher(base).replaceFirst("");
+		boolean columns = name.toLowerCase().endsWith(ResultsColumns.EXTENSION);
+		try {
+			Roi[] rois = KymographTraces.readRois(source);
+			StringBuilder rows = columns ? null : new StringBuilder(ResultsCsv.HEADER).append('\n');
+			ResultsColumns.Builder block = columns ? new ResultsColumns.Builder() : null;
+			SegmentStore store = STORE.get();
+			for (Trace trace : KymographTraces.fromRois(label, rois, side)) {
+				if (trace.segments() == 0) continue;
+				TraceAnalysis.analyze(trace.x, trace.y, trace.n, trace.side, XSCALE, YSCALE, PAUSEANGLE, store);
+				if (columns) block.add(trace.label, store);
+				else ResultsCsv.appendTrace(rows, trace.label, store);
+				result.traces++;
+				result.segments += trace.segments();
+			}
+			if (result.traces == 0) {
+				result.error = "no traces in " + source.getName();
+				return result;
+			}
+			replace(file, rows, block);
+		} catch (IOException | RuntimeException e) {
+			result.error = e.toString();
+		}
+		return result;
+	}
+
+	/**
+	 * Write the new results next to the file and move them over it.
+	 */
+	private static void replace(File file, CharSequence rows, ResultsColumns.Builder block) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			if (block != null) block.appendTo(tmp);
+			else try (PrintWriter out = new PrintWriter(tmp)) {
+				out.append(rows);
+				if (out.checkError()) throw new IOException("Cannot write " + tmp.getName());
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	/**
+	 * Counts of one regenerated file, or the reason it was skipped.
+	 */
+	private static final class FileResult {
+		final String name;
+		int traces;
+		int segments;
+		String error;
+
+		FileResult(String name) {
+			this.name = name;
+		}
+	}
+}
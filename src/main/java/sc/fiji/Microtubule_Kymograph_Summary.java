@@ -0,0 +1,179 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+
+/**
+ * Microtubule_Kymograph_Summary.java
+ * Purpose: population growth/shrink rates and pooled catastrophe/rescue frequencies over the result files of a
+ * directory, grouped by label or by experimental condition
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class Microtubule_Kymograph_Summary implements PlugIn {
+
+
+	private static final String[] GROUPS = {"Label", "Condition"};
+	// e.g. "500 nM SPR1-GFP" in "500 nM SPR1-GFP_003.tif"
+	public static final String DEFAULT_CONDITION = "(\\d+(?:\\.\\d+)?\\s*[pnu\\u03BC\\u00B5m]?M\\s+[^_,]+?)(?:_|\\.tif|$)";
+
+
+	// settings
+	private String directory;
+	private boolean byCondition = true;
+	private String conditionPattern = DEFAULT_CONDITION;
+	private String outputName = "summary.csv";
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int resamples = 0;
+	private double confidence = 95;
+	private long seed = Bootstrap.DEFAULT_SEED;
+
+
+	/**
+	 * Runs the summary. Asks for the settings (or reads them from the macro options) and summarizes the directory.
+	 *
+	 * @param arg not used.
+	 *
+	 * @return void.
+	 */
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("Microtubule Kymograph Summary");
+		gd.addDirectoryField("Directory", directory);
+		gd.addChoice("Group by", GROUPS, GROUPS[byCondition ? 1 : 0]);
+		gd.addStringField("Condition pattern", conditionPattern, 30);
+		gd.addStringField("Output file", outputName, 20);
+		gd.addNumericField("Threads", threads, 0);
+		gd.addMessage("Confidence intervals of the frequencies (0 resamples for none):");
+		gd.addNumericField("Bootstrap resamples", resamples, 0);
+		gd.addNumericField("Confidence level(%)", confidence, 1);
+		gd.addNumericField("Seed", seed, 0);
+		gd.showDialog();
+		if (gd.wasCanceled()) return;
+		directory = gd.getNextString();
+		byCondition = gd.getNextChoiceIndex() == 1;
+		conditionPattern = gd.getNextString();
+		outputName = gd.getNextString();
+		threads = Math.max(1, (int) gd.getNextNumber());
+		resamples = Math.max(0, (int) gd.getNextNumber());
+		confidence = gd.getNextNumber();
+		seed = (long) gd.getNextNumber();
+		if (confidence <= 0 || confidence >= 100) {
+			IJ.error("Confidence level must be within 0 to 100 (exclusive) percent");
+			return;
+		}
+		process();
+	}
+
+	/**
+	 * Runs the summary from the command line.
+	 *
+	 * @param args directory [label|condition pattern] [output file] [bootstrap resamples] [seed]
+	 *
+	 * @return void.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: Microtubule_Kymograph_Summary <directory> [label|<condition pattern>] "
+				+ "[output file] [bootstrap resamples] [seed]");
+			System.exit(1);
+		}
+		Microtubule_Kymograph_Summary summary = new Microtubule_Kymograph_Summary();
+		summary.directory = args[0];
+		if (args.length > 1) {
+			if (args[1].equalsIgnoreCase("label")) summary.byCondition = false;
+			else summary.conditionPattern = args[1];
+		}
+		if (args.length > 2) summary.outputName = args[2];
+		if (args.length > 3) summary.resamples = Integer.parseInt(args[3]);
+		if (args.length > 4) summary.seed = Long.parseLong(args[4]);
+		summary.process();
+	}
+
+	/**
+	 * Aggregate the .csv and .mkc result files of the directory into one summary file, one row per group.
+	 *
+	 * @return void.
+	 */
+	public void process() {
+		File dir = new File(directory);
+		if (!dir.isDirectory()) {
+			IJ.error("Not a directory: " + directory);
+			return;
+		}
+		Pattern condition = null;
+		if (byCondition) {
+			try {
+				condition = Pattern.compile(conditionPattern);
+			} catch (PatternSyntaxException e) {
+				IJ.error("Invalid condition pattern: " + e.getDescription());
+				return;
+			}
+		}
+		File outFile = new File(dir, outputName);
+		List<File> files = ResultsAggregator.listResults(dir);
+		files.remove(outFile);
+		IJ.log("Summary: " + files.size() + " result files in " + dir.getPath());
+
+		long startTime = System.nanoTime();
+		long bytes = 0;
+		for (File f : files) bytes += f.length();
+		ResultsAggregator aggregator = new ResultsAggregator(condition, resamples > 0);
+		Map<String, ResultsAggregator.Group> groups = aggregator.aggregate(files, threads);
+		for (Map.Entry<File, String> e : aggregator.skipped().entrySet()) {
+			IJ.log("Skipped " + e.getKey().getName() + ": " + e.getValue());
+			bytes -= e.getKey().length();
+		}
+		Map<String, double[]> intervals = null;
+		if (resamples > 0) {
+			long bootstrapTime = System.nanoTime();
+			intervals = new HashMap<String, double[]>();
+			for (Map.Entry<String, ResultsAggregator.Group> e : groups.entrySet()) {
+				intervals.put(e.getKey(), Bootstrap.frequencyIntervals(e.getValue(), resamples, confidence / 100, seed,
+					threads));
+			}
+			IJ.log(String.format("Bootstrap: %d resamples per group in %.2f s (seed %d)", resamples,
+				(System.nanoTime() - bootstrapTime) / 1e9, seed));
+		}
+		StringBuilder rows = new StringBuilder();
+		ResultsAggregator.appendSummary(rows, groups, intervals);
+		try (PrintWriter out = new PrintWriter(outFile)) {
+			out.println(ResultsAggregator.HEADER + (intervals != null ? ResultsAggregator.INTERVAL_HEADER : ""));
+			out.print(rows);
+		} catch (IOException e) {
+			IJ.error("ERROR: exception occoured" + e);
+			return;
+		}
+
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+		for (Map.Entry<String, ResultsAggregator.Group> e : groups.entrySet()) {
+			ResultsAggregator.Group g = e.getValue();
+			IJ.log(String.format("%s: %d traces, growth %.4f um/s, shrink %.4f um/s, catastrophe %.5f /s, "
+				+ "rescue %.5f /s", e.getKey(), g.traces(), g.growthRate(), g.shrinkRate(), g.catastropheFrequency(),
+				g.rescueFrequency()));
+			if (intervals != null) {
+				double[] ci = intervals.get(e.getKey());
+				IJ.log(String.format("    %.0f%% CI: catastrophe [%.5f, %.5f] /s, rescue [%.5f, %.5f] /s", confidence,
+					ci[0], ci[1], ci[2], ci[3]));
+			}
+		}
+		IJ.log(String.format("Summary: %d groups from %.1f MB in %.2f s (%.1f MB/s)", groups.size(), bytes / 1e6,
+			seconds, bytes / 1e6 / seconds));
+		IJ.log("Summary saved to: " + outFile.getPath());
+	}
+}
@@ -0,0 +1,127 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+
+
+/**
+ * OverlaySidecar.java
+ * Purpose: keep the traced overlay next to a kymograph in a RoiManager zip, so saving it never touches the pixels.
+ * The sidecar can be opened with the RoiManager and is read by the batch mode like any other zip.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class OverlaySidecar {
+
+
+	public static final String SUFFIX = ".overlay.zip";
+
+
+	private OverlaySidecar() {}
+
+	/**
+	 * Write ROIs to a new sidecar, replacing any existing file.
+	 *
+	 * @param file the sidecar.
+	 * @param rois the ROIs.
+	 *
+	 * @return void.
+	 */
+	public static void write(File file, Roi[] rois) throws IOException {
+		File tmp = tempFile(file);
+		try {
+			try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				writeRois(out, rois, 0);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	/**
+	 * Append ROIs to a sidecar, creating it if needed. The entries already saved are copied as bytes, without
+	 * decoding them, so the cost only depends on the number of traces.
+	 *
+	 * @param file the sidecar.
+	 * @param rois the ROIs.
+	 *
+	 * @return the number of ROIs in the sidecar.
+	 */
+	public static int append(File file, Roi[] rois) throws IOException {
+		if (!file.exists()) {
+			write(file, rois);
+			return rois.length;
+		}
+		File tmp = tempFile(file);
+		int count = 0;
+		try {
+			try (ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+					ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				byte[] buf = new byte[8192];
+				ZipEntry entry;
+				while ((entry = in.getNextEntry()) != null) {
+					out.putNextEntry(new ZipEntry(entry.getName()));
+					int len;
+					while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+					out.closeEntry();
+					count++;
+				}
+				count += writeRois(out, rois, count);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+		return count;
+	}
+
+	/**
+	 * The sidecar of an image: the image path with its extension replaced by SUFFIX.
+	 *
+	 * @param imagePath the path of the image.
+	 *
+	 * @return the sidecar.
+	 */
+	public static File of(String imagePath) {
+		int dot = imagePath.lastIndexOf('.');
+		int slash = Math.max(imagePath.lastIndexOf('/'), imagePath.lastIndexOf(File.separatorChar));
+		String base = (dot > slash) ? imagePath.substring(0, dot) : imagePath;
+		return new File(base + SUFFIX);
+	}
+
+	private static int writeRois(ZipOutputStream out, Roi[] rois, int first) throws IOException {
+		for (int i=0; i<rois.length; i++) {
+			byte[] bytes = RoiEncoder.saveAsByteArray(rois[i]);
+			if (bytes == null) throw new IOException("Cannot encode " + rois[i]);
+			// RoiManager style names, numbered on from the existing entries so they stay unique
+			out.putNextEntry(new ZipEntry(String.format("%05d.roi", first + i + 1)));
+			out.write(bytes);
+			out.closeEntry();
+		}
+		return rois.length;
+	}
+
+	private static File tempFile(File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		return File.createTempFile(file.getName(), ".tmp", dir);
+	}
+}
@@ -0,0 +1,277 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.Arrays;
+
+
+/**
+ * PauseAngleSweep.java
+ * Purpose: the statistics of calculate(), pooled over traces, for a whole range of pause angles in one pass. A
+ * growth or shrink segment turns into a pause at its own angle and stays one for every larger threshold, so each
+ * segment, and each pair of neighbouring segments (a catastrophe or a rescue), only changes the totals once along
+ * the sweep. Each trace adds that change at the first threshold it applies to, and the totals of all thresholds
+ * are running sums of the changes: the cost is one angle per segment, whatever the number of thresholds.
+ * Merged sweeps give the same totals in any order, so they can be filled in parallel.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class PauseAngleSweep {
+
+
+	// totals indexing
+	public static final int RUNS = 0;
+	public static final int GROWTH_SEGMENTS = 1;
+	public static final int SHRINK_SEGMENTS = 2;
+	public static final int PAUSE_SEGMENTS = 3;
+	public static final int UNDEFINED_SEGMENTS = 4;
+	public static final int GROWTH_TIME = 5;
+	public static final int SHRINK_TIME = 6;
+	public static final int PAUSE_TIME = 7;
+	public static final int GROWTH_DIST = 8;
+	public static final int SHRINK_DIST = 9;
+	public static final int CATASTROPHES = 10;
+	public static final int RESCUES = 11;
+	private static final int FIELDS = 12;
+
+	public static final String HEADER = "Pause angle(deg), Traces, Runs, Growth segments, Shrink segments, "
+		+ "Pause segments, Undefined segments, Growth time(s), Shrink time(s), Pause time(s), Growth rate(um/s), "
+		+ "Shrink rate(um/s), Catastrophe, Rescue, Catastrophe frequency(1/s), Rescue frequency(1/s)";
+
+
+	private final double[] angles;
+	private final double xscale;
+	private final double yscale;
+	// change of the totals at each threshold, FIELDS per threshold; running sums once finished. Times and
+	// distances are kept in pixels, so the sums are exact whatever the order traces are added in.
+	private final double[] totals;
+	private long traces;
+	private boolean finished;
+	// per trace, reused
+	private byte[] phase = new byte[16];
+	private int[] flip = new int[16];
+
+
+	/**
+	 * @param angles the pause angles (degree), increasing, within 0 (inclusive) to 90 (exclusive).
+	 * @param xscale um per pixel.
+	 * @param yscale second per pixel.
+	 */
+	public PauseAngleSweep(double[] angles, double xscale, double yscale) {
+		for (int k=0; k<angles.length; k++) {
+			if (angles[k] < 0 || angles[k] >= 90 || (k > 0 && angles[k] <= angles[k-1])) {
+				throw new IllegalArgumentException("Pause angles must increase within 0 to 90 degree");
+			}
+		}
+		this.angles = angles.clone();
+		this.xscale = xscale;
+		this.yscale = yscale;
+		this.totals = new double[angles.length * FIELDS];
+	}
+
+	/**
+	 * @param from the first pause angle (degree).
+	 * @param to the last pause angle (degree).
+	 * @param steps the number of pause angles, evenly spaced.
+	 *
+	 * @return the pause angles.
+	 */
+	public static double[] range(double from, double to, int steps) {
+		if (steps < 2) return new double[] {from};
+		double[] a = new double[steps];
+		for (int k=0; k<steps; k++) {
+			a[k] = from + (to - from) * k / (steps - 1);
+		}
+		return a;
+	}
+
+	/**
+	 * Add a trace, as analyze() would see it at each pause angle.
+	 *
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices.
+	 * @param n the number of vertices.
+	 * @param side LEFT or RIGHT.
+	 *
+	 * @return void.
+	 */
+	public void add(int[] x, int[] y, int n, int side) {
+		if (finished) throw new IllegalStateException("Sweep already finished");
+		int m = n - 1;
+		if (m <= 0 || angles.length == 0) return;
+		if (m > phase.length) {
+			phase = new byte[Math.max(m, 2 * phase.length)];
+			flip = new int[phase.length];
+		}
+		// the phase below every threshold, and the first threshold each segment is a pause from
+		int thresholds = angles.length;
+		for (int i=0; i<m; i++) {
+			int p = TraceAnalysis.getPhase(x[i], y[i], x[i+1], y[i+1], side, -1);
+			phase[i] = (byte) p;
+			flip[i] = thresholds;
+			if (p == TraceAnalysis.UNDEFINED && y[i] < y[i+1]) {
+				// vertical, a pause at any angle
+				p = TraceAnalysis.PAUSE;
+				phase[i] = (byte) p;
+				flip[i] = 0;
+			}
+			else if (p == TraceAnalysis.GROWTH || p == TraceAnalysis.SHRINK) {
+				double opposite = Math.abs(x[i+1] - x[i]);
+				double adjacent = Math.abs(y[i+1] - y[i]);
+				flip[i] = firstAtLeast(Math.toDegrees(Math.atan(opposite / adjacent)));
+			}
+		}
+
+		traces++;
+		for (int i=0; i<m; i++) {
+			int p = phase[i];
+			int f = flip[i];
+			int time = y[i+1] - y[i];
+			int dist = Math.abs(x[i+1] - x[i]);
+			if (p == TraceAnalysis.UNDEFINED) {
+				change(0, UNDEFINED_SEGMENTS, 1);
+				continue;
+			}
+			if (p == TraceAnalysis.PAUSE) {
+				change(0, PAUSE_SEGMENTS, 1);
+				change(0, PAUSE_TIME, time);
+				change(0, RUNS, 1);
+				continue;
+			}
+			boolean growth = (p == TraceAnalysis.GROWTH);
+			// a growth or shrink segment up to its flip, a pause (ending a run) from it
+			change(0, growth ? GROWTH_SEGMENTS : SHRINK_SEGMENTS, 1);
+			change(0, growth ? GROWTH_TIME : SHRINK_TIME, time);
+			change(0, growth ? GROWTH_DIST : SHRINK_DIST, dist);
+			change(f, growth ? GROWTH_SEGMENTS : SHRINK_SEGMENTS, -1);
+			change(f, growth ? GROWTH_TIME : SHRINK_TIME, -time);
+			change(f, growth ? GROWTH_DIST : SHRINK_DIST, -dist);
+			change(f, PAUSE_SEGMENTS, 1);
+			change(f, PAUSE_TIME, time);
+			change(f, RUNS, 1);
+			// a catastrophe or rescue with the segment before, as long as neither is a pause
+			if (i > 0) {
+				int q = phase[i-1];
+				int field = -1;
+				if (growth && q == TraceAnalysis.SHRINK) field = RESCUES;
+				else if (!growth && q == TraceAnalysis.GROWTH) field = CATASTROPHES;
+				if (field >= 0) {
+					change(0, field, 1);
+					change(Math.min(f, flip[i-1]), field, -1);
+				}
+			}
+		}
+		// the last run ends with the trace unless the last segment is a pause
+		change(0, RUNS, 1);
+		change(flip[m-1], RUNS, -1);
+	}
+
+	private void change(int threshold, int field, double delta) {
+		if (threshold < angles.length) totals[threshold * FIELDS + field] += delta;
+	}
+
+	/**
+	 * @return the index of the first threshold at or above the angle, or the number of thresholds.
+	 */
+	private int firstAtLeast(double degree) {
+		int k = Arrays.binarySearch(angles, degree);
+		if (k < 0) return -k - 1;
+		return k;
+	}
+
+	/**
+	 * Add the traces of another sweep over the same pause angles.
+	 *
+	 * @param other the sweep, not finished.
+	 *
+	 * @return void.
+	 */
+	public void merge(PauseAngleSweep other) {
+		if (finished || other.finished) throw new IllegalStateException("Sweep already finished");
+		if (!Arrays.equals(angles, other.angles) || xscale != other.xscale || yscale != other.yscale) {
+			throw new IllegalArgumentException("Different pause angles or scales");
+		}
+		for (int i=0; i<totals.length; i++) {
+			totals[i] += other.totals[i];
+		}
+		traces += other.traces;
+	}
+
+	/**
+	 * Turn the changes into the totals of each pause angle. No trace can be added afterwards.
+	 *
+	 * @return void.
+	 */
+	public void finish() {
+		if (finished) return;
+		for (int i=FIELDS; i<totals.length; i++) {
+			totals[i] += totals[i - FIELDS];
+		}
+		finished = true;
+	}
+
+	public int numAngles() {
+		return angles.length;
+	}
+
+	public double angle(int k) {
+		return angles[k];
+	}
+
+	public long traces() {
+		return traces;
+	}
+
+	/**
+	 * @param k the index of the pause angle.
+	 * @param field one of the totals, e.g. CATASTROPHES.
+	 *
+	 * @return the total over all traces at that pause angle, times in seconds and distances in um.
+	 */
+	public double total(int k, int field) {
+		if (!finished) throw new IllegalStateException("Sweep not finished");
+		double v = totals[k * FIELDS + field];
+		switch (field) {
+			case GROWTH_TIME:
+			case SHRINK_TIME:
+			case PAUSE_TIME: return v * yscale;
+			case GROWTH_DIST:
+			case SHRINK_DIST: return v * xscale;
+			default: return v;
+		}
+	}
+
+	/**
+	 * Append one row per pause angle, in the columns of HEADER. Rates and frequencies are pooled (total over total
+	 * time), "-" when there is no time to divide by.
+	 *
+	 * @param o the buffer.
+	 *
+	 * @return void.
+	 */
+	public void appendRows(StringBuilder o) {
+		finish();
+		for (int k=0; k<angles.length; k++) {
+			o.append(angles[k]).append(',').append(traces);
+			for (int field=RUNS; field<=PAUSE_TIME; field++) {
+				double v = total(k, field);
+				o.append(',');
+				if (field <= UNDEFINED_SEGMENTS) o.append((long) v);
+				else o.append(v);
+			}
+			o.append(',').append(ratio(total(k, GROWTH_DIST), total(k, GROWTH_TIME)));
+			o.append(',').append(ratio(total(k, SHRINK_DIST), total(k, SHRINK_TIME)));
+			o.append(',').append((long) total(k, CATASTROPHES)).append(',').append((long) total(k, RESCUES));
+			o.append(',').append(ratio(total(k, CATASTROPHES), total(k, GROWTH_TIME)));
+			o.append(',').append(ratio(total(k, RESCUES), total(k, SHRINK_TIME)));
+			o.append('\n');
+		}
+	}
+
+	private static String ratio(double a, double b) {
+		return (b > 0) ? String.valueOf(a / b) : "-";
+	}
+}
@@ -0,0 +1,569 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static sc.fiji.TraceAnalysis.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * ResultsAggregator.java
+ * Purpose: population statistics over accumulated result files (.csv sheets and .mkc columns), grouped by label or
+ * by a condition parsed from the label. Files are streamed in fixed chunks on a work-stealing pool, each chunk
+ * keeps one small accumulator per group, so memory does not grow with the amount of data. Chunks depend only on the
+ * files and are merged in order, so the result does not depend on the number of threads.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class ResultsAggregator {
+
+
+	public static final String HEADER = "Group, Traces, Segments, "
+		+ "Growth segments, Growth distance(um), Growth time(s), Growth rate(um/s), Mean growth rate(um/s), "
+		+ "SD growth rate(um/s), "
+		+ "Shrink segments, Shrink distance(um), Shrink time(s), Shrink rate(um/s), Mean shrink rate(um/s), "
+		+ "SD shrink rate(um/s), "
+		+ "Pause segments, Pause time(s), Undefined segments, "
+		+ "Catastrophe, Rescue, Catastrophe frequency(1/s), Rescue frequency(1/s)";
+	// columns added when confidence intervals are computed
+	public static final String INTERVAL_HEADER = ", Catastrophe frequency CI low(1/s), "
+		+ "Catastrophe frequency CI high(1/s), Rescue frequency CI low(1/s), Rescue frequency CI high(1/s)";
+	// group of labels the condition pattern does not match
+	public static final String NO_CONDITION = "(no condition)";
+
+
+	// bytes of a csv file read by one task
+	private static final long CHUNK = 16L << 20;
+	private static final int BUFFER = 1 << 20;
+
+
+	private final Pattern condition;
+	private final boolean keepRuns;
+	private final Charset charset = Charset.defaultCharset();
+	// files left out of the last aggregation, with the reason
+	private final Map<File, String> skipped = new LinkedHashMap<File, String>();
+	// bytes of a csv file read by one task, smaller in tests to split small files
+	long chunk = CHUNK;
+
+
+	/**
+	 * @param condition the pattern of the condition in a label, its first group if it has one; null to group by
+	 * label.
+	 */
+	public ResultsAggregator(Pattern condition) {
+		this(condition, false);
+	}
+
+	/**
+	 * @param condition the pattern of the condition in a label, its first group if it has one; null to group by
+	 * label.
+	 * @param keepRuns true to also keep the run statistics of every track, for the confidence intervals.
+	 */
+	public ResultsAggregator(Pattern condition, boolean keepRuns) {
+		this.condition = condition;
+		this.keepRuns = keepRuns;
+	}
+
+	/**
+	 * Aggregate result files. A file that cannot be read, or is not a results file, is left out as a whole and
+	 * listed by skipped().
+	 *
+	 * @param files .csv and .mkc result files.
+	 * @param threads the number of worker threads.
+	 *
+	 * @return the statistics of each group, sorted by group.
+	 */
+	public Map<String, Group> aggregate(List<File> files, int threads) {
+		skipped.clear();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<List<ForkJoinTask<Map<String, Group>>>> tasks =
+				new ArrayList<List<ForkJoinTask<Map<String, Group>>>>();
+			for (final File f : files) {
+				List<ForkJoinTask<Map<String, Group>>> fileTasks = new ArrayList<ForkJoinTask<Map<String, Group>>>();
+				tasks.add(fileTasks);
+				if (f.getName().toLowerCase().endsWith(ResultsColumns.EXTENSION)) {
+					fileTasks.add(pool.submit(() -> {
+						try {
+							return scanColumns(f);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}));
+					continue;
+				}
+				long size = f.length();
+				for (long start=0; start<size; start+=chunk) {
+					final long s = start;
+					final long e = Math.min(size, start + chunk);
+					fileTasks.add(pool.submit(() -> {
+						try {
+							return scanCsv(f, s, e);
+						} catch (IOException x) {
+							throw new UncheckedIOException(x);
+						}
+					}));
+				}
+			}
+			Map<String, Group> groups = new TreeMap<String, Group>();
+			List<Map<String, Group>> parts = new ArrayList<Map<String, Group>>();
+			for (int k=0; k<files.size(); k++) {
+				parts.clear();
+				try {
+					for (ForkJoinTask<Map<String, Group>> task : tasks.get(k)) parts.add(task.join());
+				} catch (RuntimeException e) {
+					skipped.put(files.get(k), reason(e));
+					continue;
+				}
+				for (Map<String, Group> part : parts) {
+					for (Map.Entry<String, Group> e : part.entrySet()) {
+						Group g = groups.get(e.getKey());
+						if (g == null) groups.put(e.getKey(), e.getValue());
+						else g.merge(e.getValue());
+					}
+				}
+			}
+			return groups;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return the files left out of the last aggregation, with the reason.
+	 */
+	public Map<File, String> skipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return the exception a task failed with, unwrapped from the layers added by the pool and the task.
+	 */
+	private static String reason(Throwable e) {
+		while (e.getCause() != null && !(e instanceof IOException)) e = e.getCause();
+		return e.toString();
+	}
+
+	/**
+	 * Aggregate the rows of a csv sheet starting in [start, end). A row belongs to the chunk its first byte is in;
+	 * an incomplete last row is ignored.
+	 */
+	private Map<String, Group> scanCsv(File file, long start, long end) throws IOException {
+		Chunk chunk = new Chunk();
+		try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(BUFFER);
+			byte[] line = new byte[256];
+			int len = 0;
+			// from inside the file, the row started by the byte before belongs to the previous chunk
+			boolean skip = start > 0;
+			long pos = skip ? start - 1 : 0;
+			int n;
+			while ((n = ch.read((ByteBuffer) buf.clear(), pos)) > 0) {
+				byte[] bytes = buf.array();
+				for (int i=0; i<n; i++) {
+					byte c = bytes[i];
+					if (c != '\n') {
+						if (skip) continue;
+						if (len == line.length) line = Arrays.copyOf(line, 2 * len);
+						line[len++] = c;
+						continue;
+					}
+					if (!skip) chunk.row(new String(line, 0, (len > 0 && line[len-1] == '\r') ? len-1 : len, charset));
+					skip = false;
+					len = 0;
+					if (pos + i + 1 >= end) return chunk.groups;
+				}
+				pos += n;
+			}
+		}
+		return chunk.groups;
+	}
+
+	/**
+	 * Aggregate a columnar results file.
+	 */
+	private Map<String, Group> scanColumns(File file) throws IOException {
+		Chunk chunk = new Chunk();
+		try (ResultsColumns.Reader r = ResultsColumns.open(file)) {
+			Group[] byId = new Group[r.numLabels()];
+			for (int b=0; b<r.numBlocks(); b++) {
+				int run = 0;
+				for (int i=0; i<r.numSegments(b); i++) {
+					int id = r.labelId(b, i);
+					if (byId[id] == null) byId[id] = chunk.group(r.label(id));
+					Group g = byId[id];
+					g.row(r.index(b, i));
+					g.segment(r.phase(b, i), r.dist(b, i), r.time(b, i), r.rate(b, i));
+					if (run < r.numRuns(b) && r.runStart(b, run) == i) {
+						g.run(r.run(b, run, TGROWTH), r.run(b, run, TSHRINK), r.run(b, run, NUMCAT),
+							r.run(b, run, NUMRES));
+						run++;
+					}
+				}
+			}
+		}
+		return chunk.groups;
+	}
+
+	/**
+	 * The groups of one task, with the group of each label seen so far.
+	 */
+	private final class Chunk {
+		final Map<String, Group> groups = new HashMap<String, Group>();
+		final Map<String, Group> byLabel = new HashMap<String, Group>();
+		final int[] commas = new int[64];
+
+		Group group(String label) {
+			Group g = byLabel.get(label);
+			if (g == null) {
+				String key = label;
+				if (condition != null) {
+					Matcher m = condition.matcher(label);
+					if (!m.find()) key = NO_CONDITION;
+					else key = (m.groupCount() > 0 && m.group(1) != null) ? m.group(1).trim() : m.group().trim();
+				}
+				g = groups.get(key);
+				if (g == null) {
+					g = new Group(keepRuns);
+					groups.put(key, g);
+				}
+				byLabel.put(label, g);
+			}
+			return g;
+		}
+
+		/**
+		 * Add a row of the sheet: Index, Label, Phase, Distance, Time, Rate growth, Rate shrink and, on the first
+		 * row of a run, its summary. Labels may contain commas, so the columns after it are found from the end.
+		 * Headers, blank lines and rows of another format are skipped.
+		 */
+		void row(String s) {
+			int n = 0;
+			for (int i=0; i<s.length() && n<commas.length; i++) {
+				if (s.charAt(i) == ',') commas[n++] = i;
+			}
+			if (n < 7 || n == commas.length) return;
+			int index;
+			try {
+				index = Integer.parseInt(s.substring(0, commas[0]).trim());
+			} catch (NumberFormatException e) {
+				return;
+			}
+			// a row ends with a comma: 5 commas after the phase, 13 with the run summary
+			int p = n - 5;
+			int phase = phase(s, commas[p-1] + 1, commas[p]);
+			boolean run = false;
+			if (phase == NONE && n >= 15) {
+				p = n - 13;
+				phase = phase(s, commas[p-1] + 1, commas[p]);
+				run = true;
+			}
+			if (phase == NONE || p < 2) return;
+
+			try {
+				Group g = group(s.substring(commas[0] + 1, commas[p-1]));
+				double dist = number(s, p, 0);
+				double time = number(s, p, 1);
+				double rate = (phase == GROWTH) ? number(s, p, 2) : (phase == SHRINK) ? number(s, p, 3) : 0;
+				g.row(index);
+				g.segment(phase, dist, time, rate);
+				if (run) {
+					g.run(number(s, p, 6), number(s, p, 7), number(s, p, 8), number(s, p, 9));
+				}
+			} catch (NumberFormatException e) {
+				// not a row of the sheet
+			}
+		}
+
+		/**
+		 * @return field k after the phase, 0 for "-" and empty fields.
+		 */
+		private double number(String s, int p, int k) {
+			String f = s.substring(commas[p + k] + 1, commas[p + k + 1]).trim();
+			return (f.isEmpty() || f.equals("-")) ? 0 : Double.parseDouble(f);
+		}
+	}
+
+	private static final int NONE = -2;
+
+	private static int phase(String s, int from, int to) {
+		String f = s.substring(from, to).trim();
+		switch (f) {
+			case "growth": return GROWTH;
+			case "shrink": return SHRINK;
+			case "pause": return PAUSE;
+			case "undefined": return UNDEFINED;
+			default: return NONE;
+		}
+	}
+
+	/**
+	 * Append the summary row of each group.
+	 *
+	 * @param o the buffer.
+	 * @param groups the groups.
+	 *
+	 * @return void.
+	 */
+	public static void appendSummary(StringBuilder o, Map<String, Group> groups) {
+		appendSummary(o, groups, null);
+	}
+
+	/**
+	 * Append the summary row of each group, with the confidence intervals of its frequencies.
+	 *
+	 * @param o the buffer.
+	 * @param groups the groups.
+	 * @param intervals the intervals of each group from Bootstrap.frequencyIntervals(), or null for none.
+	 *
+	 * @return void.
+	 */
+	public static void appendSummary(StringBuilder o, Map<String, Group> groups, Map<String, double[]> intervals) {
+		for (Map.Entry<String, Group> e : groups.entrySet()) {
+			Group g = e.getValue();
+			o.append(e.getKey()).append(',');
+			o.append(g.traces).append(',');
+			o.append(g.numGrowth + g.numShrink + g.numPause + g.numUndefined).append(',');
+			o.append(g.numGrowth).append(',').append(g.distGrowth).append(',').append(g.timeGrowth).append(',');
+			o.append(ratio(g.distGrowth, g.timeGrowth)).append(',');
+			o.append(ratio(g.rateGrowth, g.numGrowth)).append(',').append(sd(g.rateGrowth, g.squareGrowth, g.numGrowth))
+				.append(',');
+			o.append(g.numShrink).append(',').append(g.distShrink).append(',').append(g.timeShrink).append(',');
+			o.append(ratio(g.distShrink, g.timeShrink)).append(',');
+			o.append(ratio(g.rateShrink, g.numShrink)).append(',').append(sd(g.rateShrink, g.squareShrink, g.numShrink))
+				.append(',');
+			o.append(g.numPause).append(',').append(g.timePause).append(',').append(g.numUndefined).append(',');
+			o.append(g.numCat).append(',').append(g.numRes).append(',');
+			o.append(ratio(g.numCat, g.runTimeGrowth)).append(',').append(ratio(g.numRes, g.runTimeShrink));
+			if (intervals != null) {
+				double[] ci = intervals.get(e.getKey());
+				for (int k=0; k<4; k++) {
+					o.append(',').append((ci == null || Double.isNaN(ci[k])) ? "-" : String.valueOf(ci[k]));
+				}
+			}
+			o.append('\n');
+		}
+	}
+
+	private static String ratio(double a, double b) {
+		return (b > 0) ? String.valueOf(a / b) : "-";
+	}
+
+	private static String sd(double sum, double squares, long n) {
+		if (n < 2) return "-";
+		double mean = sum / n;
+		return String.valueOf(Math.sqrt(Math.max(0, (squares - n * mean * mean) / (n - 1))));
+	}
+
+	/**
+	 * Result files below a directory, in a fixed order.
+	 *
+	 * @param dir the directory.
+	 *
+	 * @return the .csv and .mkc files, subdirectories included.
+	 */
+	public static List<File> listResults(File dir) {
+		List<File> files = new ArrayList<File>();
+		File[] children = dir.listFiles();
+		if (children == null) return files;
+		Arrays.sort(children);
+		for (File f : children) {
+			if (f.isDirectory()) {
+				files.addAll(listResults(f));
+				continue;
+			}
+			String name = f.getName().toLowerCase();
+			if (name.endsWith(".csv") || name.endsWith(ResultsColumns.EXTENSION)) files.add(f);
+		}
+		return files;
+	}
+
+	/**
+	 * Pooled statistics of a group. Rates are pooled as total distance over total time, frequencies as total count
+	 * over total time, as for a single trace.
+	 */
+	public static final class Group {
+		// the runs of each track, kept for resampling, or null
+		final Tracks tracks;
+		long traces;
+		long numGrowth;
+		long numShrink;
+		long numPause;
+		long numUndefined;
+		double distGrowth;
+		double distShrink;
+		double timeGrowth;
+		double timeShrink;
+		double timePause;
+		double rateGrowth;
+		double rateShrink;
+		double squareGrowth;
+		double squareShrink;
+		double numCat;
+		double numRes;
+		double runTimeGrowth;
+		double runTimeShrink;
+
+		Group(boolean keepRuns) {
+			tracks = keepRuns ? new Tracks() : null;
+		}
+
+		/**
+		 * Count a row; index 1 starts a track.
+		 */
+		void row(int index) {
+			if (index == 1) {
+				traces++;
+				if (tracks != null) tracks.start();
+			}
+			// the rest of a track whose first rows were read by the previous chunk
+			else if (tracks != null && tracks.numTracks == 0) {
+				tracks.start();
+				tracks.continued = true;
+			}
+		}
+
+		void segment(int phase, double dist, double time, double rate) {
+			switch (phase) {
+				case GROWTH:
+					numGrowth++;
+					distGrowth += dist;
+					timeGrowth += time;
+					rateGrowth += rate;
+					squareGrowth += rate * rate;
+					break;
+				case SHRINK:
+					numShrink++;
+					distShrink += dist;
+					timeShrink += time;
+					rateShrink += rate;
+					squareShrink += rate * rate;
+					break;
+				case PAUSE:
+					numPause++;
+					timePause += time;
+					break;
+				default:
+					numUndefined++;
+			}
+		}
+
+		void run(double tGrowth, double tShrink, double catastrophes, double rescues) {
+			runTimeGrowth += tGrowth;
+			runTimeShrink += tShrink;
+			numCat += catastrophes;
+			numRes += rescues;
+			if (tracks != null) tracks.add(tGrowth, tShrink, catastrophes, rescues);
+		}
+
+		void merge(Group g) {
+			traces += g.traces;
+			numGrowth += g.numGrowth;
+			numShrink += g.numShrink;
+			numPause += g.numPause;
+			numUndefined += g.numUndefined;
+			distGrowth += g.distGrowth;
+			distShrink += g.distShrink;
+			timeGrowth += g.timeGrowth;
+			timeShrink += g.timeShrink;
+			timePause += g.timePause;
+			rateGrowth += g.rateGrowth;
+			rateShrink += g.rateShrink;
+			squareGrowth += g.squareGrowth;
+			squareShrink += g.squareShrink;
+			numCat += g.numCat;
+			numRes += g.numRes;
+			runTimeGrowth += g.runTimeGrowth;
+			runTimeShrink += g.runTimeShrink;
+			if (tracks != null) tracks.merge(g.tracks);
+		}
+
+		public long traces() {
+			return traces;
+		}
+
+		/**
+		 * @return the pooled growth rate (um/s), NaN without growth.
+		 */
+		public double growthRate() {
+			return distGrowth / timeGrowth;
+		}
+
+		/**
+		 * @return the pooled shrink rate (um/s), NaN without shrinkage.
+		 */
+		public double shrinkRate() {
+			return distShrink / timeShrink;
+		}
+
+		/**
+		 * @return the pooled catastrophe frequency (1/s), NaN without growth.
+		 */
+		public double catastropheFrequency() {
+			return numCat / runTimeGrowth;
+		}
+
+		/**
+		 * @return the pooled rescue frequency (1/s), NaN without shrinkage.
+		 */
+		public double rescueFrequency() {
+			return numRes / runTimeShrink;
+		}
+	}
+
+	/**
+	 * Growth time, shrink time, catastrophes and rescues of the runs of each track, summed by track.
+	 */
+	static final class Tracks {
+		// growth time, shrink time, catastrophes and rescues of track t at 4 * t
+		double[] sums = new double[64];
+		int numTracks;
+		// the first track continues the last track of the chunk before
+		boolean continued;
+
+		void start() {
+			if (4 * numTracks == sums.length) sums = Arrays.copyOf(sums, 2 * sums.length);
+			numTracks++;
+		}
+
+		void add(double tg, double ts, double cat, double res) {
+			if (numTracks == 0) start();
+			int i = 4 * (numTracks - 1);
+			sums[i] += tg;
+			sums[i+1] += ts;
+			sums[i+2] += cat;
+			sums[i+3] += res;
+		}
+
+		/**
+		 * Append the tracks of the next chunk, joining its first track to the last one if it continues it.
+		 */
+		void merge(Tracks r) {
+			for (int t=0; t<r.numTracks; t++) {
+				if (t > 0 || !r.continued || numTracks == 0) start();
+				add(r.sums[4*t], r.sums[4*t+1], r.sums[4*t+2], r.sums[4*t+3]);
+			}
+		}
+	}
+}
@@ -0,0 +1,437 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * ResultsColumns.java
+ * Purpose: columnar binary alternative to the CSV statistics sheet, for downstream analysis of many results.
+ *
+ * A file is an 8 byte magic followed by blocks, one per save, so appending never rewrites earlier data. Each block
+ * holds a dictionary of its labels and primitive little-endian columns, each starting on 8 bytes:
+ * <pre>
+ * int magic, int 0, long block length, int segments, int runs, int labels, int dictionary length
+ * dictionary: per label int length, UTF-8 bytes
+ * segments:   int label[], int index[], byte phase[], double dist[], double time[], double rate[]
+ * runs:       int start[], double stats[RUN_FIELDS][] indexed by TraceAnalysis.NUMCAT ... TraceAnalysis.DSHRINK
+ * </pre>
+ * Index is the 1-based index of the segment in its trace, as in the CSV; a run starts at segment start[r] of its
+ * block.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class ResultsColumns {
+
+
+	public static final String EXTENSION = ".mkc";
+
+
+	static final long FILE_MAGIC = 0x31304C4F434B4D4DL; // "MMKCOL01"
+	static final int BLOCK_MAGIC = 0x424B434D; // "MCKB"
+	static final int HEADER_BYTES = 32;
+
+
+	private ResultsColumns() {}
+
+	private static int align(int n) {
+		return (n + 7) & ~7;
+	}
+
+	/**
+	 * Collects traces into one block, reusing its columns between blocks.
+	 */
+	public static final class Builder {
+
+		private final List<String> labels = new ArrayList<String>();
+		private final Map<String, Integer> labelIds = new HashMap<String, Integer>();
+		private int[] label = new int[64];
+		private int[] index = new int[64];
+		private byte[] phase = new byte[64];
+		private double[] dist = new double[64];
+		private double[] time = new double[64];
+		private double[] rate = new double[64];
+		private int numSegments;
+		private int[] runStart = new int[16];
+		private double[] runStats = new double[16 * SegmentStore.RUN_FIELDS];
+		private int numRuns;
+
+		public int numSegments() {
+			return numSegments;
+		}
+
+		/**
+		 * Empty the builder, keeping its capacity.
+		 *
+		 * @return void.
+		 */
+		public void clear() {
+			labels.clear();
+			labelIds.clear();
+			numSegments = 0;
+			numRuns = 0;
+		}
+
+		/**
+		 * Add the segments and runs of a trace.
+		 *
+		 * @param traceLabel the label of the trace.
+		 * @param store the analyzed trace.
+		 *
+		 * @return void.
+		 */
+		public void add(String traceLabel, SegmentStore store) {
+			Integer id = labelIds.get(traceLabel);
+			if (id == null) {
+				id = labels.size();
+				labels.add(traceLabel);
+				labelIds.put(traceLabel, id);
+			}
+			int n = store.numSegments();
+			int capacity = numSegments + n;
+			if (label.length < capacity) {
+				capacity = Math.max(capacity, 2 * label.length);
+				label = Arrays.copyOf(label, capacity);
+				index = Arrays.copyOf(index, capacity);
+				phase = Arrays.copyOf(phase, capacity);
+				dist = Arrays.copyOf(dist, capacity);
+				time = Arrays.copyOf(time, capacity);
+				rate = Arrays.copyOf(rate, capacity);
+			}
+			for (int i=0; i<n; i++) {
+				int s = numSegments + i;
+				label[s] = id;
+				index[s] = i + 1;
+				phase[s] = (byte) store.phase(i);
+				dist[s] = store.dist(i);
+				time[s] = store.time(i);
+				rate[s] = store.rate(i);
+			}
+
+			int runs = store.numRuns();
+			if (runStart.length < numRuns + runs) {
+				int runCapacity = Math.max(numRuns + runs, 2 * runStart.length);
+				runStart = Arrays.copyOf(runStart, runCapacity);
+				runStats = Arrays.copyOf(runStats, runCapacity * SegmentStore.RUN_FIELDS);
+			}
+			for (int r=0; r<runs; r++) {
+				runStart[numRuns + r] = numSegments + store.runStart(r);
+				for (int f=0; f<SegmentStore.RUN_FIELDS; f++) {
+					runStats[(numRuns + r) * SegmentStore.RUN_FIELDS + f] = store.run(r, f);
+				}
+			}
+			numSegments += n;
+			numRuns += runs;
+		}
+
+		/**
+		 * Encode the collected traces as one block.
+		 *
+		 * @return the block, ready to be written.
+		 */
+		public ByteBuffer encode() {
+			byte[][] names = new byte[labels.size()][];
+			int dictBytes = 0;
+			for (int i=0; i<names.length; i++) {
+				names[i] = labels.get(i).getBytes(StandardCharsets.UTF_8);
+				dictBytes += 4 + names[i].length;
+			}
+			dictBytes = align(dictBytes);
+			int ns = numSegments;
+			int nr = numRuns;
+			long length = (long) HEADER_BYTES + dictBytes + 2L * align(4 * ns) + align(ns) + 3L * 8 * ns
+				+ align(4 * nr) + (long) SegmentStore.RUN_FIELDS * 8 * nr;
+			if (length > Integer.MAX_VALUE) throw new IllegalStateException("Block too large: " + length + " bytes");
+
+			ByteBuffer b = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+			b.putInt(BLOCK_MAGIC).putInt(0).putLong(length);
+			b.putInt(ns).putInt(nr).putInt(names.length).putInt(dictBytes);
+			for (byte[] name : names) {
+				b.putInt(name.length).put(name);
+			}
+			b.position(HEADER_BYTES + dictBytes);
+			b.asIntBuffer().put(label, 0, ns);
+			b.position(b.position() + align(4 * ns));
+			b.asIntBuffer().put(index, 0, ns);
+			b.position(b.position() + align(4 * ns));
+			b.put(phase, 0, ns);
+			b.position(b.position() + align(ns) - ns);
+			b.asDoubleBuffer().put(dist, 0, ns);
+			b.position(b.position() + 8 * ns);
+			b.asDoubleBuffer().put(time, 0, ns);
+			b.position(b.position() + 8 * ns);
+			b.asDoubleBuffer().put(rate, 0, ns);
+			b.position(b.position() + 8 * ns);
+			b.asIntBuffer().put(runStart, 0, nr);
+			b.position(b.position() + align(4 * nr));
+			for (int f=0; f<SegmentStore.RUN_FIELDS; f++) {
+				for (int r=0; r<nr; r++) {
+					b.putDouble(runStats[r * SegmentStore.RUN_FIELDS + f]);
+				}
+			}
+			b.flip();
+			return b;
+		}
+
+		/**
+		 * Append the collected traces to a file as one block, creating the file if needed. Other threads and
+		 * processes may append to the same file; an incomplete last block, left by a producer that died while
+		 * writing, is removed first.
+		 *
+		 * @param file the results file.
+		 *
+		 * @return void.
+		 */
+		public void appendTo(File file) throws IOException {
+			ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(FILE_MAGIC);
+			magic.flip();
+			FileAppender.append(file, magic, encode(), ResultsColumns::dropTornBlock);
+		}
+	}
+
+	/**
+	 * Cut off a block torn by a producer that died while writing. Each block starts with its magic and length, so
+	 * the complete ones are found by walking the lengths.
+	 *
+	 * @return the size of the file.
+	 */
+	private static long dropTornBlock(FileChannel ch) throws IOException {
+		long end = blocksEnd(ch);
+		if (end < ch.size()) ch.truncate(end);
+		return end;
+	}
+
+	/**
+	 * @return the end of the last complete block.
+	 */
+	private static long blocksEnd(FileChannel ch) throws IOException {
+		long size = ch.size();
+		ByteBuffer head = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		if (size < 8) return 0;
+		ch.read(head, 0);
+		if (head.position() < 8 || head.getLong(0) != FILE_MAGIC) throw new IOException("Not a results file");
+		long pos = 8;
+		while (pos + HEADER_BYTES <= size) {
+			head.clear();
+			while (head.hasRemaining() && ch.read(head, pos + head.position()) >= 0) {}
+			if (head.getInt(0) != BLOCK_MAGIC) throw new IOException("Corrupt block at " + pos);
+			long length = head.getLong(8);
+			if (length < HEADER_BYTES || pos + length > size) break;
+			pos += length;
+		}
+		return pos;
+	}
+
+	/**
+	 * Open a results file for reading.
+	 *
+	 * @param file the results file.
+	 *
+	 * @return the reader.
+	 */
+	public static Reader open(File file) throws IOException {
+		return new Reader(file);
+	}
+
+	/**
+	 * Memory-mapped view of a results file. The columns are read in place: scanning segments and runs allocates
+	 * nothing, and labels are dictionary ids shared by all blocks of the file. Files are limited to 2 GB.
+	 */
+	public static final class Reader implements Closeable {
+
+		private final FileChannel channel;
+		private final MappedByteBuffer buf;
+		private final int numBlocks;
+		private final int[] numSegments;
+		private final int[] numRuns;
+		private final int[] labelOffset;
+		private final int[] indexOffset;
+		private final int[] phaseOffset;
+		private final int[] distOffset;
+		private final int[] timeOffset;
+		private final int[] rateOffset;
+		private final int[] runStartOffset;
+		private final int[] runStatsOffset;
+		private final int[][] labelIds;
+		private final List<String> labels = new ArrayList<String>();
+
+		private Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE) throw new IOException("Results file larger than 2 GB: " + file);
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				buf.order(ByteOrder.LITTLE_ENDIAN);
+				if (size < 8 || buf.getLong(0) != FILE_MAGIC) throw new IOException("Not a results file: " + file);
+
+				List<Integer> positions = new ArrayList<Integer>();
+				int pos = 8;
+				while (pos + HEADER_BYTES <= size) {
+					if (buf.getInt(pos) != BLOCK_MAGIC) throw new IOException("Corrupt block at " + pos + ": " + file);
+					long length = buf.getLong(pos + 8);
+					if (length < HEADER_BYTES || pos + length > size) break; // incomplete last block
+					positions.add(pos);
+					pos += (int) length;
+				}
+
+				numBlocks = positions.size();
+				numSegments = new int[numBlocks];
+				numRuns = new int[numBlocks];
+				labelOffset = new int[numBlocks];
+				indexOffset = new int[numBlocks];
+				phaseOffset = new int[numBlocks];
+				distOffset = new int[numBlocks];
+				timeOffset = new int[numBlocks];
+				rateOffset = new int[numBlocks];
+				runStartOffset = new int[numBlocks];
+				runStatsOffset = new int[numBlocks];
+				labelIds = new int[numBlocks][];
+				Map<String, Integer> ids = new HashMap<String, Integer>();
+				for (int b=0; b<numBlocks; b++) {
+					int p = positions.get(b);
+					int ns = buf.getInt(p + 16);
+					int nr = buf.getInt(p + 20);
+					int nl = buf.getInt(p + 24);
+					int dictBytes = buf.getInt(p + 28);
+					numSegments[b] = ns;
+					numRuns[b] = nr;
+					labelIds[b] = new int[nl];
+					int q = p + HEADER_BYTES;
+					for (int l=0; l<nl; l++) {
+						int len = buf.getInt(q);
+						byte[] name = new byte[len];
+						ByteBuffer dup = buf.duplicate();
+						dup.position(q + 4);
+						dup.get(name);
+						String s = new String(name, StandardCharsets.UTF_8);
+						Integer id = ids.get(s);
+						if (id == null) {
+							id = labels.size();
+							labels.add(s);
+							ids.put(s, id);
+						}
+						labelIds[b][l] = id;
+						q += 4 + len;
+					}
+					labelOffset[b] = p + HEADER_BYTES + dictBytes;
+					indexOffset[b] = labelOffset[b] + align(4 * ns);
+					phaseOffset[b] = indexOffset[b] + align(4 * ns);
+					distOffset[b] = phaseOffset[b] + align(ns);
+					timeOffset[b] = distOffset[b] + 8 * ns;
+					rateOffset[b] = timeOffset[b] + 8 * ns;
+					runStartOffset[b] = rateOffset[b] + 8 * ns;
+					runStatsOffset[b] = runStartOffset[b] + align(4 * nr);
+				}
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		public int numBlocks() {
+			return numBlocks;
+		}
+
+		public int numSegments(int block) {
+			return numSegments[block];
+		}
+
+		public int numRuns(int block) {
+			return numRuns[block];
+		}
+
+		/**
+		 * @return the total number of segments of the file.
+		 */
+		public long totalSegments() {
+			long n = 0;
+			for (int b=0; b<numBlocks; b++) n += numSegments[b];
+			return n;
+		}
+
+		public int numLabels() {
+			return labels.size();
+		}
+
+		/**
+		 * @param id a label id.
+		 *
+		 * @return the label.
+		 */
+		public String label(int id) {
+			return labels.get(id);
+		}
+
+		/**
+		 * @return the label id of a segment, the same for equal labels in all blocks.
+		 */
+		public int labelId(int block, int i) {
+			return labelIds[block][buf.getInt(labelOffset[block] + 4 * i)];
+		}
+
+		/**
+		 * @return the 1-based index of a segment in its trace.
+		 */
+		public int index(int block, int i) {
+			return buf.getInt(indexOffset[block] + 4 * i);
+		}
+
+		public int phase(int block, int i) {
+			return buf.get(phaseOffset[block] + i);
+		}
+
+		public double dist(int block, int i) {
+			return buf.getDouble(distOffset[block] + 8 * i);
+		}
+
+		public double time(int block, int i) {
+			return buf.getDouble(timeOffset[block] + 8 * i);
+		}
+
+		public double rate(int block, int i) {
+			return buf.getDouble(rateOffset[block] + 8 * i);
+		}
+
+		/**
+		 * @return the segment of the block a run starts at.
+		 */
+		public int runStart(int block, int r) {
+			return buf.getInt(runStartOffset[block] + 4 * r);
+		}
+
+		/**
+		 * @param field TraceAnalysis.NUMCAT ... TraceAnalysis.DSHRINK.
+		 *
+		 * @return a statistic of a run.
+		 */
+		public double run(int block, int r, int field) {
+			return buf.getDouble(runStatsOffset[block] + 8 * (field * numRuns[block] + r));
+		}
+
+		/**
+		 * Close the file. The mapping itself is released by the garbage collector.
+		 *
+		 * @return void.
+		 */
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static sc.fiji.TraceAnalysis.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * ResultsCsv.java
+ * Purpose: row format of the statistics sheet written by Save New, Save Append and the batch mode
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class ResultsCsv {
+
+
+	public static final String HEADER = "Index, Label, Phase, Distance(um), Time(s), "
+		+ "Rate growth(um/s), Rate shrink(um/s), "
+		+ "Distance growth(um), Distance shrink(um), Time growth(s), Time shrink(s), "
+		+ "Catastrophe, Rescue, Catastrophe frequency, Rescue frequency";
+
+	// bytes encoded at a time by appendTo
+	private static final int CHUNK = 64 << 10;
+
+
+	private ResultsCsv() {}
+
+	public static String phase2String(double phase){
+		String phaseString = "";
+		switch ((int)phase)
+		{
+			case GROWTH: phaseString = "growth";
+				break;
+			case SHRINK: phaseString = "shrink";
+				break;
+			case PAUSE: phaseString = "pause";
+				break;
+			case UNDEFINED: phaseString = "undefined";
+				break;
+		}
+		return phaseString;
+	}
+
+	/**
+	 * Append one segment row, with the run summary if the segment starts a run.
+	 *
+	 * @param o the row buffer.
+	 * @param index the 1-based index of the segment.
+	 * @param label the label of the trace.
+	 * @param store the trace.
+	 * @param i the index of the segment in the store.
+	 * @param run the run starting at this segment, or -1.
+	 *
+	 * @return void.
+	 */
+	public static void appendRow(StringBuilder o, int index, String label, SegmentStore store, int i, int run) {
+		int phase = store.phase(i);
+		o.append(index).append(',').append(label).append(',');
+		o.append(phase2String(phase)).append(',');
+		o.append(store.dist(i)).append(',');
+		o.append(store.time(i)).append(',');
+		if (phase == GROWTH) o.append(store.rate(i)).append(",,");
+		else if (phase == SHRINK) o.append(',').append(store.rate(i)).append(',');
+		else o.append(",,");
+
+		if (run >= 0) {
+			o.append(store.run(run, DGROWTH)).append(',');
+			o.append(store.run(run, DSHRINK)).append(',');
+			o.append(store.run(run, TGROWTH)).append(',');
+			o.append(store.run(run, TSHRINK)).append(',');
+			if (store.run(run, DGROWTH) > 0) o.append(store.run(run, NUMCAT)).append(',');
+			else o.append("-,");
+			if (store.run(run, DSHRINK) > 0) o.append(store.run(run, NUMRES)).append(',');
+			else o.append("-,");
+			if (store.run(run, DGROWTH) > 0) o.append(store.run(run, FREQCAT)).append(',');
+			else o.append("-,");
+			if (store.run(run, DSHRINK) > 0) o.append(store.run(run, FREQRES)).append(',');
+			else o.append("-,");
+		}
+
+		o.append('\n');
+	}
+
+	/**
+	 * Append rows to a results file that other threads and processes may be appending to as well. The rows are
+	 * written under a file lock, after the header if the file is new, and encoded in bounded chunks rather than
+	 * copied whole. An incomplete last line, left by a producer that died while writing, is removed first.
+	 *
+	 * @param file the results file.
+	 * @param rows complete rows, each ending with a newline.
+	 *
+	 * @return void.
+	 */
+	public static void appendTo(File file, CharSequence rows) throws IOException {
+		Charset charset = Charset.defaultCharset();
+		ByteBuffer header = charset.encode(HEADER + System.lineSeparator());
+		FileAppender.append(file, header, (ch, position) -> write(ch, position, rows, charset),
+			ResultsCsv::dropTornLine);
+	}
+
+	/**
+	 * Encode rows into a reused buffer and write it each time it is full.
+	 *
+	 * @return the position after the rows.
+	 */
+	private static long write(FileChannel ch, long position, CharSequence rows, Charset charset)
+		throws IOException {
+		// replace what the charset cannot encode, as Charset.encode does
+		CharsetEncoder encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer in = CharBuffer.wrap(rows);
+		ByteBuffer out = ByteBuffer.allocate(CHUNK);
+		boolean flushed = false;
+		while (!flushed) {
+			CoderResult result = encoder.encode(in, out, true);
+			if (result.isUnderflow()) {
+				result = encoder.flush(out);
+				flushed = result.isUnderflow();
+			}
+			if (result.isError()) result.throwException();
+			out.flip();
+			position = FileAppender.write(ch, out, position);
+			out.clear();
+		}
+		return position;
+	}
+
+	/**
+	 * Cut the file after its last newline. Every row appended ends with one, so a last line without it is torn;
+	 * FileAppender logs the bytes dropped.
+	 *
+	 * @return the size of the file.
+	 */
+	private static long dropTornLine(FileChannel ch) throws IOException {
+		long end = lastLineEnd(ch);
+		if (end < ch.size()) ch.truncate(end);
+		return end;
+	}
+
+	/**
+	 * @return the end of the last complete line, 0 if there is none.
+	 */
+	private static long lastLineEnd(FileChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(8192);
+		long end = ch.size();
+		while (end > 0) {
+			long start = Math.max(0, end - buf.capacity());
+			buf.clear().limit((int) (end - start));
+			while (buf.hasRemaining() && ch.read(buf, start + buf.position()) >= 0) {}
+			for (int i=buf.position()-1; i>=0; i--) {
+				if (buf.get(i) == '\n') return start + i + 1;
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	/**
+	 * Append the rows of a whole trace followed by an empty line.
+	 *
+	 * @param o the buffer.
+	 * @param label the label of the trace.
+	 * @param store the trace.
+	 *
+	 * @return void.
+	 */
+	public static void appendTrace(StringBuilder o, String label, SegmentStore store) {
+		int run = 0;
+		for (int i=0; i<store.numSegments(); i++) {
+			int r = -1;
+			if (run < store.numRuns() && store.runStart(run) == i) r = run++;
+			appendRow(o, i+1, label, store, i, r);
+		}
+		o.append('\n');
+	}
+}
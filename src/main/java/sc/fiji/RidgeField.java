@@ -0,0 +1,222 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.process.ImageProcessor;
+
+
+/**
+ * RidgeField.java
+ * Purpose: smoothed horizontal intensity gradient of a kymograph, computed lazily per tile and cached, used to snap
+ * clicked vertices onto the microtubule tip edge
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class RidgeField {
+
+
+	private static final int TILE = 64;
+	// tiles kept, about 16 MB, so the field of a very tall kymograph stays bounded
+	private static final int MAX_TILES = 1024;
+
+
+	private final KymographTiles pixels;
+	private final int width;
+	private final int height;
+	private final int radius;
+	private final float[] gauss;
+	private final float[] dgauss;
+	private final int tilesX;
+	private final LinkedHashMap<Integer, Tile> tiles;
+	private int epoch;
+
+
+	/**
+	 * @param ip the kymograph, time axis vertical.
+	 * @param sigma the Gaussian smoothing radius (pixel).
+	 */
+	public RidgeField(ImageProcessor ip, double sigma) {
+		this(KymographTiles.of(ip), sigma);
+	}
+
+	/**
+	 * @param pixels the kymograph, time axis vertical.
+	 * @param sigma the Gaussian smoothing radius (pixel).
+	 */
+	public RidgeField(KymographTiles pixels, double sigma) {
+		this.pixels = pixels;
+		this.width = pixels.getWidth();
+		this.height = pixels.getHeight();
+		this.radius = Math.max(1, (int) Math.ceil(3 * sigma));
+		this.gauss = new float[2 * radius + 1];
+		this.dgauss = new float[2 * radius + 1];
+		double sum = 0;
+		for (int i=-radius; i<=radius; i++) {
+			double g = Math.exp(-0.5 * i * i / (sigma * sigma));
+			gauss[i + radius] = (float) g;
+			dgauss[i + radius] = (float) (-i * g / (sigma * sigma));
+			sum += g;
+		}
+		for (int i=0; i<gauss.length; i++) {
+			gauss[i] /= sum;
+			dgauss[i] /= sum;
+		}
+		this.tilesX = (width + TILE - 1) / TILE;
+		this.tiles = new LinkedHashMap<Integer, Tile>(64, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Tile> eldest) {
+				return size() > MAX_TILES;
+			}
+		};
+	}
+
+	/**
+	 * @return the image processor the field was computed from, or null if its pixels are mapped from a file.
+	 */
+	public ImageProcessor getProcessor() {
+		return pixels.getProcessor();
+	}
+
+	/**
+	 * Mark the cached tiles as possibly stale. Each tile is checked against its pixels on its next use and is only
+	 * recomputed if they changed.
+	 *
+	 * @return void.
+	 */
+	public synchronized void invalidate() {
+		epoch++;
+	}
+
+	/**
+	 * Smoothed intensity drop towards the right at a pixel: positive where the image is brighter on the left.
+	 *
+	 * @param x the column.
+	 * @param y the row.
+	 *
+	 * @return the gradient, 0 outside the image.
+	 */
+	public synchronized float gradient(int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) return 0;
+		Tile tile = tile(x / TILE, y / TILE);
+		return tile.dx[(y - tile.y0) * TILE + (x - tile.x0)];
+	}
+
+	/**
+	 * Move a vertex along its row to the strongest tip edge within a radius. The row, i.e. the time, is kept.
+	 *
+	 * @param x the clicked column.
+	 * @param y the clicked row.
+	 * @param side TraceAnalysis.LEFT or TraceAnalysis.RIGHT, the side the microtubule grows towards.
+	 * @param searchRadius the largest move (pixel).
+	 *
+	 * @return the snapped column, x itself if there is no edge nearby.
+	 */
+	public synchronized int snapX(int x, int y, int side, int searchRadius) {
+		if (y < 0 || y >= height) return x;
+		float sign = (side == TraceAnalysis.LEFT) ? -1 : 1;
+		int best = x;
+		float max = 0;
+		for (int d=0; d<=searchRadius; d++) {
+			for (int k=(d == 0) ? 1 : 0; k<2; k++) {
+				int xx = (k == 0) ? x - d : x + d;
+				if (xx < 0 || xx >= width) continue;
+				float v = sign * gradient(xx, y);
+				if (v > max) {
+					max = v;
+					best = xx;
+				}
+			}
+		}
+		return best;
+	}
+
+	private Tile tile(int tx, int ty) {
+		int index = ty * tilesX + tx;
+		Tile tile = tiles.get(index);
+		if (tile != null && tile.epoch != epoch) {
+			if (tile.checksum == checksum(tile.x0, tile.y0)) tile.epoch = epoch;
+			else tile = null;
+		}
+		if (tile == null) {
+			tile = compute(tx * TILE, ty * TILE);
+			tiles.put(index, tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Compute one tile: vertical Gaussian, then horizontal derivative of Gaussian, over the tile and its halo.
+	 */
+	private Tile compute(int x0, int y0) {
+		int wx0 = Math.max(0, x0 - radius);
+		int wx1 = Math.min(width, x0 + TILE + radius);
+		int wy0 = y0;
+		int wy1 = Math.min(height, y0 + TILE);
+		int ww = wx1 - wx0;
+		float[] vertical = new float[ww * TILE];
+		for (int y=wy0; y<wy1; y++) {
+			for (int x=wx0; x<wx1; x++) {
+				float v = 0;
+				for (int k=-radius; k<=radius; k++) {
+					int yy = Math.min(height - 1, Math.max(0, y + k));
+					v += gauss[k + radius] * pixels.getf(x, yy);
+				}
+				vertical[(y - wy0) * ww + (x - wx0)] = v;
+			}
+		}
+		Tile tile = new Tile(x0, y0);
+		for (int y=wy0; y<wy1; y++) {
+			for (int x=x0; x<Math.min(width, x0 + TILE); x++) {
+				float v = 0;
+				for (int k=-radius; k<=radius; k++) {
+					int xx = Math.min(wx1 - 1, Math.max(wx0, x + k));
+					v += dgauss[k + radius] * vertical[(y - wy0) * ww + (xx - wx0)];
+				}
+				// correlating with dgauss, which is -x*G(x), gives the drop towards the right
+				tile.dx[(y - y0) * TILE + (x - x0)] = v;
+			}
+		}
+		tile.checksum = checksum(x0, y0);
+		tile.epoch = epoch;
+		return tile;
+	}
+
+	/**
+	 * Hash of the pixels a tile depends on.
+	 */
+	private long checksum(int x0, int y0) {
+		int wx0 = Math.max(0, x0 - radius);
+		int wx1 = Math.min(width, x0 + TILE + radius);
+		int wy0 = Math.max(0, y0 - radius);
+		int wy1 = Math.min(height, y0 + TILE + radius);
+		long h = 1125899906842597L;
+		for (int y=wy0; y<wy1; y++) {
+			for (int x=wx0; x<wx1; x++) {
+				h = 31 * h + Float.floatToIntBits(pixels.getf(x, y));
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Cached gradient of one tile.
+	 */
+	private static final class Tile {
+		final int x0;
+		final int y0;
+		final float[] dx = new float[TILE * TILE];
+		long checksum;
+		int epoch;
+
+		Tile(int x0, int y0) {
+			this.x0 = x0;
+			this.y0 = y0;
+		}
+	}
+}
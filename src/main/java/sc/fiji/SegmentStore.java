@@ -0,0 +1,225 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.Arrays;
+
+
+/**
+ * SegmentStore.java
+ * Purpose: growable primitive columns for the vertices, segments and pause-delimited runs of a trace, meant to be
+ * reused across edits and traces
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class SegmentStore {
+
+
+	// number of statistics per run, indexed by TraceAnalysis.NUMCAT ... TraceAnalysis.DSHRINK
+	public static final int RUN_FIELDS = 8;
+
+
+	// vertices
+	int[] x = new int[16];
+	int[] y = new int[16];
+	int numVertices;
+
+
+	// segments, segment i goes from vertex i to vertex i+1
+	byte[] phase = new byte[16];
+	double[] dist = new double[16];
+	double[] time = new double[16];
+	double[] rate = new double[16];
+	int numSegments;
+
+
+	// runs, run r starts at segment runStart[r] and its statistics are runStats[r*RUN_FIELDS ...]
+	int[] runStart = new int[4];
+	double[] runStats = new double[4 * RUN_FIELDS];
+	int numRuns;
+
+
+	/**
+	 * Empty the store, keeping its capacity.
+	 *
+	 * @return void.
+	 */
+	public void clear() {
+		numVertices = 0;
+		numSegments = 0;
+		numRuns = 0;
+	}
+
+	/**
+	 * Release the capacity not in use, e.g. while the trace is not being edited.
+	 *
+	 * @return void.
+	 */
+	public void trim() {
+		x = Arrays.copyOf(x, Math.max(numVertices, 16));
+		y = Arrays.copyOf(y, x.length);
+		phase = Arrays.copyOf(phase, Math.max(numSegments, 16));
+		dist = Arrays.copyOf(dist, phase.length);
+		time = Arrays.copyOf(time, phase.length);
+		rate = Arrays.copyOf(rate, phase.length);
+		runStart = Arrays.copyOf(runStart, Math.max(numRuns, 4));
+		runStats = Arrays.copyOf(runStats, runStart.length * RUN_FIELDS);
+	}
+
+	/**
+	 * @return the approximate memory held by the columns, in bytes.
+	 */
+	public long bytes() {
+		return 8L * x.length + 25L * phase.length + 4L * runStart.length + 8L * runStats.length;
+	}
+
+	public int numVertices() {
+		return numVertices;
+	}
+
+	public int numSegments() {
+		return numSegments;
+	}
+
+	public int numRuns() {
+		return numRuns;
+	}
+
+	public int x(int i) {
+		return x[i];
+	}
+
+	public int y(int i) {
+		return y[i];
+	}
+
+	public int phase(int i) {
+		return phase[i];
+	}
+
+	public double dist(int i) {
+		return dist[i];
+	}
+
+	public double time(int i) {
+		return time[i];
+	}
+
+	public double rate(int i) {
+		return rate[i];
+	}
+
+	public int runStart(int r) {
+		return runStart[r];
+	}
+
+	/**
+	 * @param r the run.
+	 * @param field one of TraceAnalysis.NUMCAT ... TraceAnalysis.DSHRINK.
+	 *
+	 * @return the statistic of the run.
+	 */
+	public double run(int r, int field) {
+		return runStats[r * RUN_FIELDS + field];
+	}
+
+	/**
+	 * Find the pause-delimited run holding a segment.
+	 *
+	 * @param segment index of the segment.
+	 *
+	 * @return index of the run, 0 if there is none.
+	 */
+	public int findRun(int segment) {
+		int lo = 0;
+		int hi = numRuns - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (runStart[mid] <= segment) lo = mid;
+			else hi = mid - 1;
+		}
+		return lo;
+	}
+
+	/**
+	 * Replace the vertices [from, toOld) by the vertices [from, to) of xs/ys. Later vertices move behind them.
+	 *
+	 * @return void.
+	 */
+	public void replaceVertices(int from, int toOld, int to, int[] xs, int[] ys) {
+		int n = numVertices + to - toOld;
+		if (x.length < n) {
+			int capacity = Math.max(n, 2 * x.length);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+		}
+		System.arraycopy(x, toOld, x, to, numVertices - toOld);
+		System.arraycopy(y, toOld, y, to, numVertices - toOld);
+		System.arraycopy(xs, from, x, from, to - from);
+		System.arraycopy(ys, from, y, from, to - from);
+		numVertices = n;
+	}
+
+	/**
+	 * Replace the segments [from, toOld) by to - from segments to be set with setSegment(). Later segments move
+	 * behind them.
+	 *
+	 * @return void.
+	 */
+	public void replaceSegments(int from, int toOld, int to) {
+		int n = numSegments + to - toOld;
+		if (phase.length < n) {
+			int capacity = Math.max(n, 2 * phase.length);
+			phase = Arrays.copyOf(phase, capacity);
+			dist = Arrays.copyOf(dist, capacity);
+			time = Arrays.copyOf(time, capacity);
+			rate = Arrays.copyOf(rate, capacity);
+		}
+		int tail = numSegments - toOld;
+		System.arraycopy(phase, toOld, phase, to, tail);
+		System.arraycopy(dist, toOld, dist, to, tail);
+		System.arraycopy(time, toOld, time, to, tail);
+		System.arraycopy(rate, toOld, rate, to, tail);
+		numSegments = n;
+	}
+
+	public void setSegment(int i, int segmentPhase, double segmentDist, double segmentTime) {
+		phase[i] = (byte) segmentPhase;
+		dist[i] = segmentDist;
+		time[i] = segmentTime;
+		rate[i] = segmentDist / segmentTime;
+	}
+
+	/**
+	 * Replace the runs [from, toOld) by count zeroed runs. Later runs move behind them.
+	 *
+	 * @return void.
+	 */
+	public void replaceRuns(int from, int toOld, int count) {
+		int to = from + count;
+		int n = numRuns + to - toOld;
+		if (runStart.length < n) {
+			int capacity = Math.max(n, 2 * runStart.length);
+			runStart = Arrays.copyOf(runStart, capacity);
+			runStats = Arrays.copyOf(runStats, capacity * RUN_FIELDS);
+		}
+		System.arraycopy(runStart, toOld, runStart, to, numRuns - toOld);
+		System.arraycopy(runStats, toOld * RUN_FIELDS, runStats, to * RUN_FIELDS, (numRuns - toOld) * RUN_FIELDS);
+		Arrays.fill(runStats, from * RUN_FIELDS, to * RUN_FIELDS, 0);
+		numRuns = n;
+	}
+
+	/**
+	 * Move the start of the runs [from, numRuns) by delta segments.
+	 *
+	 * @return void.
+	 */
+	public void shiftRuns(int from, int delta) {
+		for (int r=from; r<numRuns; r++) {
+			runStart[r] += delta;
+		}
+	}
+}
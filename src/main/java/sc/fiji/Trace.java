@@ -0,0 +1,44 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+
+/**
+ * Trace.java
+ * Purpose: the vertices of one traced microtubule, with the side it was traced on
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class Trace {
+
+	public final String label;
+	public final int[] x;
+	public final int[] y;
+	public final int n;
+	public final int side;
+
+	/**
+	 * @param label the label of the trace, usually the image title.
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices.
+	 * @param n the number of vertices.
+	 * @param side TraceAnalysis.LEFT or TraceAnalysis.RIGHT.
+	 */
+	public Trace(String label, int[] x, int[] y, int n, int side) {
+		this.label = label;
+		this.x = x;
+		this.y = y;
+		this.n = n;
+		this.side = side;
+	}
+
+	/**
+	 * @return the number of segments.
+	 */
+	public int segments() {
+		return Math.max(n-1, 0);
+	}
+}
@@ -0,0 +1,230 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+/**
+ * TraceAnalysis.java
+ * Purpose: phase classification and catastrophe/rescue statistics of a traced polyline, independent of any UI
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public final class TraceAnalysis {
+
+
+	// sides and phases
+	public static final int LEFT = 0;
+	public static final int RIGHT = 1;
+	public static final int GROWTH = 0;
+	public static final int SHRINK = 1;
+	public static final int PAUSE = 2;
+	public static final int UNDEFINED = -1;
+	// not yet decided by phases()
+	private static final int AMBIGUOUS = -2;
+
+
+	// run statistics indexing
+	public static final int NUMCAT = 0;
+	public static final int NUMRES = 1;
+	public static final int TGROWTH = 2;
+	public static final int TSHRINK = 3;
+	public static final int FREQCAT = 4;
+	public static final int FREQRES = 5;
+	public static final int DGROWTH = 6;
+	public static final int DSHRINK = 7;
+
+
+	private TraceAnalysis() {}
+
+	/**
+	 * Classify a segment. The time axis is vertical, so a segment going up or sideways is undefined.
+	 *
+	 * @param x1 x of the first point.
+	 * @param y1 y of the first point.
+	 * @param x2 x of the second point.
+	 * @param y2 y of the second point.
+	 * @param side LEFT or RIGHT, the side of the kymograph the microtubule grows towards.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 *
+	 * @return GROWTH, SHRINK, PAUSE or UNDEFINED.
+	 */
+	public static int getPhase(int x1, int y1, int x2, int y2, int side, double pauseAngle) {
+		if (side != LEFT && side != RIGHT) throw new IllegalArgumentException("Phase error: side not set");
+		if (y1 >= y2) return UNDEFINED;
+		double opposite = Math.abs(x2 - x1);
+		double adjacent = Math.abs(y2 - y1);
+		double degree = Math.toDegrees(Math.atan(opposite / adjacent));
+		if (degree <= pauseAngle) return PAUSE;
+		if (x1 == x2) return UNDEFINED;
+		if (side == LEFT) {
+			return (x1 < x2) ? SHRINK : GROWTH;
+		}
+		else {
+			return (x1 > x2) ? SHRINK : GROWTH;
+		}
+	}
+
+	/**
+	 * Classify the segments of a polyline.
+	 *
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices.
+	 * @param n the number of vertices.
+	 * @param side LEFT or RIGHT.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 *
+	 * @return the phase of each of the n-1 segments, as getPhase() would give it.
+	 */
+	public static byte[] phases(int[] x, int[] y, int n, int side, double pauseAngle) {
+		int m = Math.max(n-1, 0);
+		return phases(x, y, 0, m, side, pauseAngle, new byte[m]);
+	}
+
+	/**
+	 * Classify the segments [from, to) of a polyline into phase[from, to). The angle test compares the horizontal
+	 * move against the vertical one times a precomputed tangent, without a per-segment atan; only segments within
+	 * rounding distance of the pause angle are handed to getPhase().
+	 *
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices.
+	 * @param from the first segment.
+	 * @param to the end of the segments (exclusive).
+	 * @param side LEFT or RIGHT.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 * @param phase receives the phases, at least to long.
+	 *
+	 * @return phase.
+	 */
+	public static byte[] phases(int[] x, int[] y, int from, int to, int side, double pauseAngle, byte[] phase) {
+		if (side != LEFT && side != RIGHT) throw new IllegalArgumentException("Phase error: side not set");
+		if (pauseAngle < 0 || pauseAngle >= 90) {
+			for (int i=from; i<to; i++) {
+				phase[i] = (byte) getPhase(x[i], y[i], x[i+1], y[i+1], side, pauseAngle);
+			}
+			return phase;
+		}
+		double tangent = Math.tan(Math.toRadians(pauseAngle));
+		double below = tangent * (1 - 1e-9);
+		double above = tangent * (1 + 1e-9);
+		int grow = (side == RIGHT) ? 1 : -1;
+		boolean ambiguous = false;
+		// no calls and no early exits, so the loop stays a straight run of compares and selects
+		for (int i=from; i<to; i++) {
+			int dx = x[i+1] - x[i];
+			int dy = y[i+1] - y[i];
+			double opposite = Math.abs((double) dx);
+			int p = (dx * grow > 0) ? GROWTH : SHRINK;
+			p = (opposite > dy * above) ? p : AMBIGUOUS;
+			p = (opposite <= dy * below) ? PAUSE : p;
+			p = (dy <= 0) ? UNDEFINED : p;
+			phase[i] = (byte) p;
+			ambiguous |= (p == AMBIGUOUS);
+		}
+		if (ambiguous) {
+			for (int i=from; i<to; i++) {
+				if (phase[i] == AMBIGUOUS) phase[i] = (byte) getPhase(x[i], y[i], x[i+1], y[i+1], side, pauseAngle);
+			}
+		}
+		return phase;
+	}
+
+	/**
+	 * Classify and measure the segments [from, to) of a store from its vertices.
+	 *
+	 * @param store the trace.
+	 * @param from the first segment.
+	 * @param to the end of the segments (exclusive).
+	 * @param side LEFT or RIGHT.
+	 * @param xscale um per pixel.
+	 * @param yscale second per pixel.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 *
+	 * @return the number of undefined segments among them.
+	 */
+	public static int classify(SegmentStore store, int from, int to, int side, double xscale, double yscale,
+			double pauseAngle) {
+		int[] x = store.x;
+		int[] y = store.y;
+		byte[] phase = phases(x, y, from, to, side, pauseAngle, store.phase);
+		int undefined = 0;
+		for (int i=from; i<to; i++) {
+			store.setSegment(i, phase[i], Math.abs(x[i+1] - x[i]) * xscale, (y[i+1] - y[i]) * yscale);
+			if (phase[i] == UNDEFINED) undefined++;
+		}
+		return undefined;
+	}
+
+	/**
+	 * Summarize the pause-delimited runs of the segments [s, e] into the runs [r1, r2) of a store, replacing them.
+	 * A run ends at each pause and at e; s must be the start of a run.
+	 *
+	 * @param store the trace.
+	 * @param s the first segment.
+	 * @param e the last segment (inclusive).
+	 * @param r1 the first run to replace.
+	 * @param r2 the end of the runs to replace (exclusive).
+	 *
+	 * @return the number of runs written from r1 on.
+	 */
+	public static int runs(SegmentStore store, int s, int e, int r1, int r2) {
+		byte[] phase = store.phase;
+		int count = 0;
+		for (int j=s; j<=e; j++) {
+			if (phase[j] == PAUSE || j == e) count++;
+		}
+		store.replaceRuns(r1, r2, count);
+
+		double[] time = store.time;
+		double[] dist = store.dist;
+		double[] stats = store.runStats;
+		int r = r1;
+		int d = r * SegmentStore.RUN_FIELDS;
+		int start = s;
+		for (int j=s; j<=e; j++) {
+			if (phase[j] == GROWTH){
+				stats[d + TGROWTH] += time[j];
+				stats[d + DGROWTH] += dist[j];
+				if (j > 0 && phase[j-1] == SHRINK) stats[d + NUMRES] += 1;
+			} else if (phase[j] == SHRINK) {
+				stats[d + TSHRINK] += time[j];
+				stats[d + DSHRINK] += dist[j];
+				if (j > 0 && phase[j-1] == GROWTH) stats[d + NUMCAT] += 1;
+			}
+			if (phase[j] == PAUSE || j == e) {
+				if (stats[d + TGROWTH] != 0) stats[d + FREQCAT] = stats[d + NUMCAT]/stats[d + TGROWTH];
+				if (stats[d + TSHRINK] != 0) stats[d + FREQRES] = stats[d + NUMRES]/stats[d + TSHRINK];
+				store.runStart[r] = start;
+				start = j+1;
+				r++;
+				d += SegmentStore.RUN_FIELDS;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Analyze a whole polyline into a store, replacing its content.
+	 *
+	 * @param x the x coordinates of the vertices.
+	 * @param y the y coordinates of the vertices.
+	 * @param n the number of vertices.
+	 * @param side LEFT or RIGHT.
+	 * @param xscale um per pixel.
+	 * @param yscale second per pixel.
+	 * @param pauseAngle the largest angle (degree) from vertical counted as a pause.
+	 * @param store receives the trace.
+	 *
+	 * @return void.
+	 */
+	public static void analyze(int[] x, int[] y, int n, int side, double xscale, double yscale,
+			double pauseAngle, SegmentStore store) {
+		store.clear();
+		int m = Math.max(n-1, 0);
+		store.replaceVertices(0, 0, n, x, y);
+		store.replaceSegments(0, 0, m);
+		classify(store, 0, m, side, xscale, yscale, pauseAngle);
+		if (m > 0) runs(store, 0, m-1, 0, 0);
+	}
+}
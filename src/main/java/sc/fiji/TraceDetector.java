@@ -0,0 +1,354 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+
+/**
+ * TraceDetector.java
+ * Purpose: detect microtubule tip traces on a kymograph. The image is smoothed in parallel row bands, the tip edge
+ * on the growing side is enhanced, tip positions are linked row by row along the time axis, and each track is
+ * simplified into a polyline whose vertices are the phase changes. The result does not depend on the number of
+ * threads.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class TraceDetector {
+
+
+	// rows per parallel tile
+	private static final int TILE_ROWS = 64;
+	// candidates kept per row
+	private static final int MAX_CANDIDATES = 8;
+
+
+	// parameters
+	private final double sigma;
+	private final double threshold;
+	private final int maxJump;
+	private final int maxGap;
+	private final int minRows;
+	private final double tolerance;
+
+
+	/**
+	 * Detector with the default parameters.
+	 */
+	public TraceDetector() {
+		this(1.5, 3, 12, 2, 10, 1.5);
+	}
+
+	/**
+	 * @param sigma the Gaussian smoothing radius (pixel).
+	 * @param threshold the edge strength needed for a tip, in standard deviations above the mean edge response.
+	 * @param maxJump the largest horizontal move of a tip between two rows (pixel).
+	 * @param maxGap the number of rows a track may miss before it ends.
+	 * @param minRows the number of rows a track needs to be kept.
+	 * @param tolerance the largest distance (pixel) of a tip position from the simplified polyline.
+	 */
+	public TraceDetector(double sigma, double threshold, int maxJump, int maxGap, int minRows, double tolerance) {
+		this.sigma = sigma;
+		this.threshold = threshold;
+		this.maxJump = maxJump;
+		this.maxGap = maxGap;
+		this.minRows = minRows;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Detect the tip traces of a kymograph.
+	 *
+	 * @param ip the kymograph, time axis vertical.
+	 * @param side TraceAnalysis.LEFT or TraceAnalysis.RIGHT, the side the microtubules grow towards.
+	 *
+	 * @return the traces as polylines, longest first.
+	 */
+	public List<PolygonRoi> detect(ImageProcessor ip, int side) {
+		return detect(KymographTiles.of(ip), side);
+	}
+
+	/**
+	 * Detect the tip traces of a kymograph. The image is processed in row bands, twice: once for the statistics of
+	 * the edge response, once for the tip candidates. Only the bands being processed are held in memory, so a
+	 * kymograph of any length can be searched.
+	 *
+	 * @param pixels the kymograph, time axis vertical.
+	 * @param side TraceAnalysis.LEFT or TraceAnalysis.RIGHT, the side the microtubules grow towards.
+	 *
+	 * @return the traces as polylines, longest first.
+	 */
+	public List<PolygonRoi> detect(KymographTiles pixels, int side) {
+		int height = pixels.getHeight();
+		float cutoff = cutoff(pixels, side);
+		int[][] candidates = new int[height][];
+		tiles(height).forEach(t -> candidates(edges(pixels, t, side), pixels.getWidth(), t, Math.min(height,
+			t + TILE_ROWS), cutoff, candidates));
+		List<int[]> tracks = link(candidates, height);
+
+		List<PolygonRoi> rois = new ArrayList<PolygonRoi>();
+		for (int[] track : tracks) {
+			rois.add(simplify(track));
+		}
+		return rois;
+	}
+
+	/**
+	 * Tip edge response of one band of rows: the drop of intensity when moving towards the growing side, where the
+	 * microtubule ends, after a separable Gaussian smoothing. The band is read with a halo of rows for the vertical
+	 * pass.
+	 *
+	 * @return the response of the rows [t, t + TILE_ROWS), row after row.
+	 */
+	private float[] edges(KymographTiles pixels, int t, int side) {
+		int width = pixels.getWidth();
+		int height = pixels.getHeight();
+		int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+		float[] kernel = new float[2 * radius + 1];
+		double sum = 0;
+		for (int i=-radius; i<=radius; i++) {
+			kernel[i + radius] = (float) Math.exp(-0.5 * i * i / (sigma * sigma));
+			sum += kernel[i + radius];
+		}
+		for (int i=0; i<kernel.length; i++) kernel[i] /= sum;
+
+		int end = Math.min(height, t + TILE_ROWS);
+		int h0 = Math.max(0, t - radius);
+		int h1 = Math.min(height, end + radius);
+		float[] band = new float[(h1 - h0) * width];
+		pixels.rows(h0, h1, band);
+		float[] horizontal = new float[band.length];
+		for (int y=h0; y<h1; y++) {
+			int row = (y - h0) * width;
+			for (int x=0; x<width; x++) {
+				float v = 0;
+				for (int k=-radius; k<=radius; k++) {
+					int xx = Math.min(width - 1, Math.max(0, x + k));
+					v += kernel[k + radius] * band[row + xx];
+				}
+				horizontal[row + x] = v;
+			}
+		}
+		float[] smooth = new float[width];
+		float[] edge = new float[(end - t) * width];
+		int dir = (side == TraceAnalysis.LEFT) ? -1 : 1;
+		for (int y=t; y<end; y++) {
+			for (int x=0; x<width; x++) {
+				float v = 0;
+				for (int k=-radius; k<=radius; k++) {
+					int yy = Math.min(height - 1, Math.max(0, y + k));
+					v += kernel[k + radius] * horizontal[(yy - h0) * width + x];
+				}
+				smooth[x] = v;
+			}
+			int row = (y - t) * width;
+			for (int x=1; x<width-1; x++) {
+				edge[row + x] = smooth[x - dir] - smooth[x + dir];
+			}
+		}
+		return edge;
+	}
+
+	/**
+	 * Edge strength needed for a tip: mean plus threshold standard deviations. Sums are kept per tile and added in
+	 * tile order so the value is reproducible.
+	 */
+	private float cutoff(KymographTiles pixels, int side) {
+		int width = pixels.getWidth();
+		int height = pixels.getHeight();
+		int numTiles = (height + TILE_ROWS - 1) / TILE_ROWS;
+		double[] sums = new double[numTiles];
+		double[] squares = new double[numTiles];
+		tiles(height).forEach(t -> {
+			float[] edge = edges(pixels, t, side);
+			double s = 0;
+			double q = 0;
+			for (int i=0; i<edge.length; i++) {
+				s += edge[i];
+				q += (double) edge[i] * edge[i];
+			}
+			sums[t / TILE_ROWS] = s;
+			squares[t / TILE_ROWS] = q;
+		});
+		double s = 0;
+		double q = 0;
+		for (int i=0; i<numTiles; i++) {
+			s += sums[i];
+			q += squares[i];
+		}
+		double n = (double) width * height;
+		double mean = s / n;
+		double sd = Math.sqrt(Math.max(0, q / n - mean * mean));
+		return (float) (mean + threshold * sd);
+	}
+
+	/**
+	 * The strongest local maxima of the edge response of each row of a band, sorted by x.
+	 */
+	private void candidates(float[] edge, int width, int t, int end, float cutoff, int[][] candidates) {
+		int[] xs = new int[MAX_CANDIDATES];
+		for (int y=t; y<end; y++) {
+			int row = (y - t) * width;
+			int count = 0;
+			for (int x=1; x<width-1; x++) {
+				float v = edge[row + x];
+				if (v < cutoff || v < edge[row + x - 1] || v <= edge[row + x + 1]) continue;
+				if (count < MAX_CANDIDATES) {
+					xs[count++] = x;
+				}
+				else {
+					int weakest = 0;
+					for (int k=1; k<count; k++) {
+						if (edge[row + xs[k]] < edge[row + xs[weakest]]) weakest = k;
+					}
+					if (v > edge[row + xs[weakest]]) xs[weakest] = x;
+				}
+			}
+			int[] found = Arrays.copyOf(xs, count);
+			Arrays.sort(found);
+			candidates[y] = found;
+		}
+	}
+
+	/**
+	 * Link tip candidates row by row. Each active track, oldest first, takes the nearest free candidate within
+	 * maxJump; free candidates start new tracks.
+	 *
+	 * @return the kept tracks as x positions per row (-1 where the track missed the row) with the first row stored
+	 * in the last element, longest first.
+	 */
+	private List<int[]> link(int[][] candidates, int height) {
+		List<int[]> active = new ArrayList<int[]>();
+		List<int[]> done = new ArrayList<int[]>();
+		// active track: [firstRow, lastRow, lastX, gap, x(firstRow), x(firstRow+1), ...]
+		for (int y=0; y<height; y++) {
+			int[] row = candidates[y];
+			boolean[] used = new boolean[row.length];
+			for (int t=0; t<active.size(); t++) {
+				int[] track = active.get(t);
+				int best = -1;
+				for (int k=0; k<row.length; k++) {
+					if (used[k] || Math.abs(row[k] - track[2]) > maxJump) continue;
+					if (best < 0 || Math.abs(row[k] - track[2]) < Math.abs(row[best] - track[2])) best = k;
+				}
+				if (best >= 0) {
+					used[best] = true;
+					track = extend(track, y, row[best]);
+					active.set(t, track);
+				}
+				else if (++track[3] > maxGap) {
+					done.add(track);
+					active.remove(t--);
+				}
+			}
+			for (int k=0; k<row.length; k++) {
+				if (!used[k]) active.add(extend(new int[] {y, y, row[k], 0}, y, row[k]));
+			}
+		}
+		done.addAll(active);
+
+		List<int[]> tracks = new ArrayList<int[]>();
+		for (int[] track : done) {
+			int rows = track[1] - track[0] + 1;
+			if (rows < Math.max(2, minRows)) continue;
+			int[] xs = new int[rows + 1];
+			System.arraycopy(track, 4, xs, 0, rows);
+			xs[rows] = track[0];
+			tracks.add(xs);
+		}
+		tracks.sort((a, b) -> (a.length != b.length) ? b.length - a.length
+			: (a[a.length-1] != b[b.length-1]) ? a[a.length-1] - b[b.length-1] : a[0] - b[0]);
+		return tracks;
+	}
+
+	private int[] extend(int[] track, int y, int x) {
+		int index = 4 + y - track[0];
+		if (track.length <= index) {
+			int old = track.length;
+			track = Arrays.copyOf(track, Math.max(index + 1, 2 * old));
+			Arrays.fill(track, old, track.length, -1);
+		}
+		for (int i=4 + track[1] - track[0] + 1; i<index; i++) track[i] = -1;
+		track[index] = x;
+		track[1] = y;
+		track[2] = x;
+		track[3] = 0;
+		return track;
+	}
+
+	/**
+	 * Douglas-Peucker simplification of a track into a polyline.
+	 */
+	private PolygonRoi simplify(int[] xs) {
+		int rows = xs.length - 1;
+		int firstRow = xs[rows];
+		int n = 0;
+		int[] px = new int[rows];
+		int[] py = new int[rows];
+		for (int i=0; i<rows; i++) {
+			if (xs[i] < 0) continue;
+			px[n] = xs[i];
+			py[n] = firstRow + i;
+			n++;
+		}
+
+		boolean[] keep = new boolean[n];
+		keep[0] = true;
+		keep[n-1] = true;
+		int[] stack = new int[2 * n];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = n-1;
+		while (top > 0) {
+			int b = stack[--top];
+			int a = stack[--top];
+			double dx = px[b] - px[a];
+			double dy = py[b] - py[a];
+			double length = Math.sqrt(dx * dx + dy * dy);
+			int farthest = -1;
+			double max = tolerance;
+			for (int i=a+1; i<b; i++) {
+				double d = Math.abs(dy * (px[i] - px[a]) - dx * (py[i] - py[a])) / length;
+				if (d > max) {
+					max = d;
+					farthest = i;
+				}
+			}
+			if (farthest >= 0) {
+				keep[farthest] = true;
+				stack[top++] = a;
+				stack[top++] = farthest;
+				stack[top++] = farthest;
+				stack[top++] = b;
+			}
+		}
+
+		int count = 0;
+		for (int i=0; i<n; i++) {
+			if (keep[i]) count++;
+		}
+		int[] x = new int[count];
+		int[] y = new int[count];
+		for (int i=0, j=0; i<n; i++) {
+			if (!keep[i]) continue;
+			x[j] = px[i];
+			y[j] = py[i];
+			j++;
+		}
+		return new PolygonRoi(x, y, count, Roi.POLYLINE);
+	}
+
+	private static IntStream tiles(int height) {
+		return IntStream.range(0, (height + TILE_ROWS - 1) / TILE_ROWS).parallel().map(t -> t * TILE_ROWS);
+	}
+}
@@ -0,0 +1,63 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+
+/**
+ * MetricsEvent.java
+ * Purpose: Flight Recorder event of an instrumented operation, recorded with e.g.
+ * -XX:StartFlightRecording=settings=profile. Built for Java 11, whose API has jdk.jfr, and only found by Metrics
+ * through reflection, so the plugin still builds and runs on Java 8 without it.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+@Name("sc.fiji.KymographOperation")
+@Label("Kymograph Operation")
+@Category("Microtubule Kymograph Analysis")
+@Description("An instrumented operation of the tracing and analysis pipeline")
+@StackTrace(false)
+final class MetricsEvent extends Event {
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+
+	@Label("Allocated")
+	@DataAmount(DataAmount.BYTES)
+	long allocated;
+
+	static void emit(String operation, long latency, long allocated) {
+		MetricsEvent e = new MetricsEvent();
+		if (!e.isEnabled()) return;
+		e.operation = operation;
+		e.latency = latency;
+		e.allocated = allocated;
+		e.commit();
+	}
+
+	/**
+	 * Created by Metrics through reflection.
+	 */
+	static final class Emitter implements Metrics.Recorder {
+
+		@Override
+		public void record(String operation, long latency, long allocated) {
+			emit(operation, latency, allocated);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+
+/**
+ * DynamicInstabilityModelTest.java
+ * Purpose: check the velocity and diffusion fitted to simulated traces, and that they do not depend on the side the
+ * microtubules grow towards.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class DynamicInstabilityModelTest {
+
+
+	private static final double XSCALE = 0.08;
+	private static final double YSCALE = 2.5;
+	private static final double PAUSEANGLE = 10;
+
+
+	@Test
+	public void pauseWithoutDriftHasNoVelocity() {
+		// pauses moving -1, 0 or 1 pixel in 10 pixels of time: no drift, variance 2/3 pixel^2 per segment
+		SplittableRandom r = new SplittableRandom(6);
+		List<Trace> traces = new ArrayList<Trace>();
+		for (int k=0; k<2000; k++) {
+			int n = 21;
+			int[] x = new int[n];
+			int[] y = new int[n];
+			x[0] = 500;
+			for (int i=1; i<n; i++) {
+				x[i] = x[i-1] + r.nextInt(-1, 2);
+				y[i] = y[i-1] + 10;
+			}
+			traces.add(new Trace("pause.tif", x, y, n, k % 2 == 0 ? TraceAnalysis.LEFT : TraceAnalysis.RIGHT));
+		}
+		DynamicInstabilityModel model = DynamicInstabilityModel.fit(traces, XSCALE, YSCALE, PAUSEANGLE, 4);
+
+		int pause = TraceAnalysis.PAUSE;
+		assertEquals(2000 * 20, model.segments(pause));
+		assertEquals(2000 * 20 * 10 * YSCALE, model.time(pause), 1e-6);
+		// the standard error of the velocity is about 1.3e-5 um/s
+		assertEquals(0, model.velocity(pause), 1e-4);
+		double diffusion = 2.0 / 3 * XSCALE * XSCALE / (10 * YSCALE);
+		assertEquals(diffusion, model.diffusion(pause), 0.03 * diffusion);
+	}
+
+	@Test
+	public void mirroredTracesGiveSameModel() {
+		SplittableRandom r = new SplittableRandom(7);
+		List<Trace> right = new ArrayList<Trace>();
+		List<Trace> left = new ArrayList<Trace>();
+		for (int k=0; k<500; k++) {
+			int n = 2 + r.nextInt(30);
+			int[] x = new int[n];
+			int[] y = new int[n];
+			int[] mirrored = new int[n];
+			x[0] = 500;
+			for (int i=1; i<n; i++) {
+				x[i] = x[i-1] + r.nextInt(-12, 13);
+				y[i] = y[i-1] + 1 + r.nextInt(15);
+			}
+			for (int i=0; i<n; i++) {
+				mirrored[i] = 1000 - x[i];
+			}
+			right.add(new Trace("right.tif", x, y, n, TraceAnalysis.RIGHT));
+			left.add(new Trace("left.tif", mirrored, y.clone(), n, TraceAnalysis.LEFT));
+		}
+		DynamicInstabilityModel a = DynamicInstabilityModel.fit(right, XSCALE, YSCALE, PAUSEANGLE, 2);
+		DynamicInstabilityModel b = DynamicInstabilityModel.fit(left, XSCALE, YSCALE, PAUSEANGLE, 3);
+		assertTrue(a.velocity(TraceAnalysis.GROWTH) > 0);
+		assertTrue(a.velocity(TraceAnalysis.SHRINK) > 0);
+		for (int state=0; state<DynamicInstabilityModel.STATES; state++) {
+			assertEquals(a.segments(state), b.segments(state));
+			assertEquals(a.velocity(state), b.velocity(state), 1e-12);
+			assertEquals(a.diffusion(state), b.diffusion(state), 1e-12);
+			for (int to=0; to<DynamicInstabilityModel.STATES; to++) {
+				assertEquals(a.transitions(state, to), b.transitions(state, to));
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * EditHistoryTest.java
+ * Purpose: check that undoing and redoing the recorded ranges gives back every polyline of an editing session.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class EditHistoryTest {
+
+
+	@Test
+	public void undoAndRedoRestoreEveryStep() {
+		Random r = new Random(2);
+		EditHistory history = new EditHistory();
+		List<int[][]> states = new ArrayList<int[][]>();
+		int[] x = new int[0];
+		int[] y = new int[0];
+		states.add(new int[][] {x, y});
+		for (int step=0; step<200; step++) {
+			int n = x.length;
+			int from = r.nextInt(n + 1);
+			int toOld = from + r.nextInt(Math.min(3, n - from) + 1);
+			// always change the number of vertices, so no two steps are merged as one drag
+			int count = (toOld - from) + (r.nextBoolean() ? 1 : -1);
+			if (count < 0) count = 1;
+			int[] nx = new int[n - (toOld - from) + count];
+			int[] ny = new int[nx.length];
+			System.arraycopy(x, 0, nx, 0, from);
+			System.arraycopy(y, 0, ny, 0, from);
+			for (int i=from; i<from+count; i++) {
+				nx[i] = r.nextInt(1000);
+				ny[i] = r.nextInt(1000);
+			}
+			System.arraycopy(x, toOld, nx, from + count, n - toOld);
+			System.arraycopy(y, toOld, ny, from + count, n - toOld);
+			history.record(from, toOld, from + count, x, y, nx, ny, false);
+			x = nx;
+			y = ny;
+			states.add(new int[][] {x, y});
+		}
+
+		for (int k=states.size()-2; k>=0; k--) {
+			int[][] p = history.undo(x, y, x.length);
+			assertPolyline(states.get(k), p, "undo to step " + k);
+			x = p[0];
+			y = p[1];
+		}
+		assertNull(history.undo(x, y, x.length));
+
+		for (int k=1; k<states.size(); k++) {
+			int[][] p = history.redo(x, y, x.length);
+			assertPolyline(states.get(k), p, "redo to step " + k);
+			x = p[0];
+			y = p[1];
+		}
+		assertNull(history.redo(x, y, x.length));
+	}
+
+	@Test
+	public void drawingIsOneStep() {
+		EditHistory history = new EditHistory();
+		int[] none = {};
+		int[] two = {1, 2};
+		int[] three = {1, 2, 3};
+		int[] moved = {1, 9, 3};
+		history.record(0, 0, 2, none, none, two, two, true);
+		history.record(2, 2, 3, two, two, three, three, false);
+		history.record(1, 2, 2, three, three, moved, moved, false);
+
+		int[][] p = history.undo(moved, moved, 3);
+		assertArrayEquals(three, p[0]);
+		p = history.undo(p[0], p[1], 3);
+		assertEquals(0, p[0].length);
+		assertNull(history.undo(p[0], p[1], 0));
+
+		history.discarded(three, three, 3);
+		p = history.undo(none, none, 0);
+		assertArrayEquals(three, p[0]);
+	}
+
+	private static void assertPolyline(int[][] expected, int[][] actual, String message) {
+		assertArrayEquals(message, expected[0], actual[0]);
+		assertArrayEquals(message, expected[1], actual[1]);
+	}
+}
@@ -0,0 +1,145 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * EditJournalTest.java
+ * Purpose: check that replaying a journal rebuilds the traced vertices, and that a record torn by a crash, or a
+ * corrupt length, only loses the records from there on.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class EditJournalTest {
+
+
+	private static final String TITLE = "kymograph 1.tif";
+
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	@Test
+	public void replayRebuildsTrace() throws IOException {
+		List<int[][]> states = trace(folder.getRoot(), 300);
+		assertSession(states.get(states.size() - 1), recover(folder.getRoot()));
+	}
+
+	@Test
+	public void tornTailLosesOnlyLastEdit() throws IOException {
+		List<int[][]> states = trace(folder.getRoot(), 300);
+		File journal = journal(folder.getRoot());
+		try (RandomAccessFile f = new RandomAccessFile(journal, "rw")) {
+			f.setLength(f.length() - 3);
+		}
+		assertSession(states.get(states.size() - 2), recover(folder.getRoot()));
+	}
+
+	@Test
+	public void corruptLengthIsIgnored() throws IOException {
+		List<int[][]> states = trace(folder.getRoot(), 300);
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journal(folder.getRoot()), true))) {
+			out.writeInt(Integer.MAX_VALUE);
+			out.writeLong(0);
+			out.write(new byte[100]);
+		}
+		assertSession(states.get(states.size() - 1), recover(folder.getRoot()));
+	}
+
+	@Test
+	public void journalIsHeldOnce() throws IOException {
+		EditJournal journal = EditJournal.acquire(folder.getRoot(), TITLE);
+		assertNotNull(journal);
+		assertNull(EditJournal.acquire(folder.getRoot(), TITLE));
+		journal.close(true);
+		journal = EditJournal.acquire(folder.getRoot(), TITLE);
+		assertNotNull(journal);
+		journal.close(true);
+	}
+
+	/**
+	 * Trace with random edits, closing the journal as a crash would leave it.
+	 *
+	 * @return the vertices after each edit.
+	 */
+	private static List<int[][]> trace(File dir, int edits) throws IOException {
+		EditJournal journal = EditJournal.acquire(dir, TITLE);
+		assertNull(journal.recover());
+		journal.start();
+		journal.reset(TraceAnalysis.LEFT, TITLE);
+		SplittableRandom r = new SplittableRandom(5);
+		List<int[][]> states = new ArrayList<int[][]>();
+		int[] x = new int[0];
+		int[] y = new int[0];
+		for (int k=0; k<edits; k++) {
+			int n = x.length;
+			int from = r.nextInt(n + 1);
+			int toOld = from + r.nextInt(Math.min(3, n - from) + 1);
+			int count = 1 + r.nextInt(3);
+			int[] nx = new int[n - (toOld - from) + count];
+			int[] ny = new int[nx.length];
+			System.arraycopy(x, 0, nx, 0, from);
+			System.arraycopy(y, 0, ny, 0, from);
+			for (int i=from; i<from+count; i++) {
+				nx[i] = r.nextInt(1000);
+				ny[i] = r.nextInt(1000);
+			}
+			System.arraycopy(x, toOld, nx, from + count, n - toOld);
+			System.arraycopy(y, toOld, ny, from + count, n - toOld);
+			journal.edit(from, toOld, nx, ny, from + count);
+			x = nx;
+			y = ny;
+			states.add(new int[][] {x, y});
+		}
+		journal.close(false);
+		return states;
+	}
+
+	private static EditJournal.Session recover(File dir) throws IOException {
+		EditJournal journal = EditJournal.acquire(dir, TITLE);
+		try {
+			return journal.recover();
+		} finally {
+			journal.close(false);
+		}
+	}
+
+	private static File journal(File dir) {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".journal"));
+		assertEquals(1, files.length);
+		return files[0];
+	}
+
+	private static void assertSession(int[][] expected, EditJournal.Session s) {
+		assertNotNull(s);
+		assertEquals(TITLE, s.title);
+		assertEquals(TraceAnalysis.LEFT, s.side);
+		assertFalse(s.saved);
+		assertArrayEquals(expected[0], Arrays.copyOf(s.x, s.n));
+		assertArrayEquals(expected[1], Arrays.copyOf(s.y, s.n));
+	}
+}
@@ -0,0 +1,139 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.Line;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+
+/**
+ * IncrementalAnalysisTest.java
+ * Purpose: check that the incremental getLines() and calculate() of the plugin give the same segments and runs as
+ * analyzing the whole polyline again, after every edit of random traces.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class IncrementalAnalysisTest {
+
+
+	private static final double XSCALE = 0.08;
+	private static final double YSCALE = 2.5;
+	private static final double PAUSEANGLE = 3;
+
+
+	@Test
+	public void incrementalMatchesFullRecompute() throws Exception {
+		Random r = new Random(1);
+		for (int trial=0; trial<300; trial++) {
+			Microtubule_Kymograph_Analysis plugin = newPlugin();
+			List<int[]> points = new ArrayList<int[]>();
+			for (int step=0; step<60; step++) {
+				int op = r.nextInt(5);
+				if (op <= 1 || points.size() < 2) points.add(new int[] {r.nextInt(20), r.nextInt(40)});
+				else if (op == 2) points.set(r.nextInt(points.size()), new int[] {r.nextInt(20), r.nextInt(40)});
+				else if (op == 3) points.remove(r.nextInt(points.size()));
+				else points.add(r.nextInt(points.size()), new int[] {r.nextInt(20), r.nextInt(40)});
+				if (points.isEmpty()) continue;
+
+				int[] x = new int[points.size()];
+				int[] y = new int[points.size()];
+				for (int i=0; i<x.length; i++) {
+					x[i] = points.get(i)[0];
+					y[i] = points.get(i)[1];
+				}
+				boolean finished = r.nextBoolean();
+				set(plugin, "finished", finished);
+				set(plugin, "currentPolyline", new PolygonRoi(x.clone(), y.clone(), x.length, Roi.POLYLINE));
+				if (plugin.getLines()) plugin.calculate();
+
+				// the last vertex of an unfinished polyline follows the mouse and is not analyzed
+				int n = finished ? x.length : x.length - 1;
+				if (n < 2) n = 0;
+				SegmentStore full = new SegmentStore();
+				TraceAnalysis.analyze(x, y, n, TraceAnalysis.RIGHT, XSCALE, YSCALE, PAUSEANGLE, full);
+				SegmentStore store = (SegmentStore) get(plugin, "store");
+				assertEquals("trial " + trial + ", step " + step, state(full), state(store));
+
+				if (r.nextInt(3) == 0) checkOverlay(plugin, store, "trial " + trial + ", step " + step);
+			}
+		}
+	}
+
+	/**
+	 * Draw the dirty overlay lines as the canvas would, then check all lines follow the segments.
+	 */
+	private static void checkOverlay(Microtubule_Kymograph_Analysis plugin, SegmentStore store, String where)
+		throws Exception {
+		Line[] lines = (Line[]) get(plugin, "overlayLines");
+		int from = (Integer) get(plugin, "dirtyFrom");
+		int to = (Integer) get(plugin, "dirtyTo");
+		int n = store.numSegments();
+		for (int i=from; i<Math.min(to, n); i++) {
+			if (lines[i] == null) lines[i] = new Line(store.x(i), store.y(i), store.x(i+1), store.y(i+1));
+		}
+		set(plugin, "dirtyFrom", 0);
+		set(plugin, "dirtyTo", 0);
+		for (int i=0; i<n; i++) {
+			Line l = lines[i];
+			assertEquals(where + ", line " + i, store.x(i) + "," + store.y(i) + "," + store.x(i+1) + "," + store.y(i+1),
+				l == null ? "null" : (int) l.x1d + "," + (int) l.y1d + "," + (int) l.x2d + "," + (int) l.y2d);
+		}
+	}
+
+	private static String state(SegmentStore store) {
+		StringBuilder o = new StringBuilder();
+		ResultsCsv.appendTrace(o, "trace", store);
+		return o.append(store.numVertices()).toString();
+	}
+
+	/**
+	 * The plugin window cannot be opened headless, so the plugin is made without its constructor and given just
+	 * the state the analysis uses.
+	 */
+	private static Microtubule_Kymograph_Analysis newPlugin() throws Exception {
+		Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+		Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+		theUnsafe.setAccessible(true);
+		Method allocate = unsafeClass.getMethod("allocateInstance", Class.class);
+		Microtubule_Kymograph_Analysis p = (Microtubule_Kymograph_Analysis) allocate.invoke(theUnsafe.get(null),
+			Microtubule_Kymograph_Analysis.class);
+		set(p, "XSCALE", XSCALE);
+		set(p, "YSCALE", YSCALE);
+		set(p, "PAUSEANGLE", PAUSEANGLE);
+		set(p, "staleLines", new ArrayList<Line>());
+		set(p, "store", new SegmentStore());
+		set(p, "currRun", new double[SegmentStore.RUN_FIELDS]);
+		set(p, "side", TraceAnalysis.RIGHT);
+		set(p, "clickX", new int[16]);
+		set(p, "clickY", new int[16]);
+		set(p, "snapX", new int[16]);
+		set(p, "history", new EditHistory());
+		return p;
+	}
+
+	private static void set(Object o, String name, Object value) throws Exception {
+		Field f = Microtubule_Kymograph_Analysis.class.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	private static Object get(Object o, String name) throws Exception {
+		Field f = Microtubule_Kymograph_Analysis.class.getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(o);
+	}
+}
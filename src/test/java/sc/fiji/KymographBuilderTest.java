@@ -0,0 +1,114 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * KymographBuilderTest.java
+ * Purpose: check that a kymograph does not depend on the number of threads or on the stack being virtual, and that
+ * it is calibrated in microns and seconds.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class KymographBuilderTest {
+
+
+	private static final int FRAMES = 12;
+
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	@Test
+	public void sameForThreadsAndVirtualStacks() {
+		ImagePlus imp = stack();
+		Roi roi = line();
+		ImagePlus kymograph = KymographBuilder.build(imp, roi, 1);
+		assertEquals(FRAMES, kymograph.getHeight());
+		float[] one = pixels(kymograph);
+		assertArrayEquals(one, pixels(KymographBuilder.build(imp, roi, 8)), 0);
+
+		String path = new File(folder.getRoot(), "stack.tif").getPath();
+		assertTrue(IJ.saveAsTiff(imp, path));
+		ImagePlus virtual = IJ.openVirtual(path);
+		assertTrue(virtual.getStack().isVirtual());
+		assertArrayEquals(one, pixels(KymographBuilder.build(virtual, roi, 4)), 0);
+	}
+
+	@Test
+	public void calibratedInMicronsAndSeconds() {
+		ImagePlus imp = stack();
+		Calibration cal = imp.getCalibration();
+		cal.setUnit("nm");
+		cal.pixelWidth = 100;
+		cal.setTimeUnit("ms");
+		cal.frameInterval = 500;
+		ImagePlus kymograph = KymographBuilder.build(imp, line(), 2);
+		assertEquals(FRAMES, kymograph.getHeight());
+		// the scales the analysis takes from the kymograph
+		assertArrayEquals(new double[] {0.1, 0.5}, KymographAnalyzer.calibratedScales(kymograph), 1e-12);
+
+		cal.setTimeUnit("fortnight");
+		kymograph = KymographBuilder.build(imp, line(), 2);
+		assertEquals("frame", kymograph.getCalibration().getYUnit());
+		assertNull(KymographAnalyzer.calibratedScales(kymograph));
+	}
+
+	/**
+	 * A time-lapse of a pattern moving one pixel per frame.
+	 */
+	private static ImagePlus stack() {
+		int width = 64;
+		int height = 48;
+		ImageStack stack = new ImageStack(width, height);
+		for (int t=0; t<FRAMES; t++) {
+			float[] pixels = new float[width * height];
+			for (int y=0; y<height; y++) {
+				for (int x=0; x<width; x++) {
+					pixels[y * width + x] = (float) (100 * Math.sin((x - t) * 0.3) + 7 * y + ((x * 31 + y * 17) % 5));
+				}
+			}
+			stack.addSlice(new FloatProcessor(width, height, pixels));
+		}
+		ImagePlus imp = new ImagePlus("stack", stack);
+		imp.setDimensions(1, 1, FRAMES);
+		return imp;
+	}
+
+	/**
+	 * A wide polyline at angles that fall between pixels.
+	 */
+	private static Roi line() {
+		PolygonRoi roi = new PolygonRoi(new float[] {5.5f, 30.2f, 58.7f}, new float[] {10.3f, 25.1f, 40.9f},
+			Roi.POLYLINE);
+		roi.setStrokeWidth(3);
+		return roi;
+	}
+
+	private static float[] pixels(ImagePlus imp) {
+		return (float[]) imp.getProcessor().getPixels();
+	}
+}
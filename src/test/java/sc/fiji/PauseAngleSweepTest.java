@@ -0,0 +1,105 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+
+/**
+ * PauseAngleSweepTest.java
+ * Purpose: check that one pass of the sweep gives, at every pause angle, the totals of analyzing each trace again
+ * at that angle.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class PauseAngleSweepTest {
+
+
+	private static final double XSCALE = 0.08;
+	private static final double YSCALE = 2.5;
+
+
+	@Test
+	public void sweepMatchesAnalyzeAtEachAngle() {
+		SplittableRandom r = new SplittableRandom(9);
+		int traces = 2000;
+		int[][] xs = new int[traces][];
+		int[][] ys = new int[traces][];
+		int[] sides = new int[traces];
+		for (int t=0; t<traces; t++) {
+			int n = 2 + r.nextInt(40);
+			int[] x = new int[n];
+			int[] y = new int[n];
+			x[0] = 500;
+			for (int i=1; i<n; i++) {
+				// flat, backwards and exactly diagonal segments, where the classification is on a boundary
+				int k = r.nextInt(10);
+				x[i] = x[i-1] + (k == 0 ? 0 : r.nextInt(-15, 16));
+				y[i] = y[i-1] + (k == 1 ? -r.nextInt(3) : 1 + r.nextInt(15));
+				if (k == 2) {
+					int d = r.nextInt(1, 10);
+					x[i] = x[i-1] + d;
+					y[i] = y[i-1] + d;
+				}
+			}
+			xs[t] = x;
+			ys[t] = y;
+			sides[t] = r.nextInt(2) == 0 ? TraceAnalysis.LEFT : TraceAnalysis.RIGHT;
+		}
+
+		double[] angles = PauseAngleSweep.range(0, 45, 46);
+		// two halves merged, as the batch does with its workers
+		PauseAngleSweep sweep = new PauseAngleSweep(angles, XSCALE, YSCALE);
+		PauseAngleSweep other = new PauseAngleSweep(angles, XSCALE, YSCALE);
+		for (int t=0; t<traces; t++) {
+			(t % 2 == 0 ? sweep : other).add(xs[t], ys[t], xs[t].length, sides[t]);
+		}
+		sweep.merge(other);
+		sweep.finish();
+		assertEquals(traces, sweep.traces());
+
+		SegmentStore store = new SegmentStore();
+		for (int k=0; k<angles.length; k++) {
+			double[] expected = new double[PauseAngleSweep.RESCUES + 1];
+			for (int t=0; t<traces; t++) {
+				TraceAnalysis.analyze(xs[t], ys[t], xs[t].length, sides[t], XSCALE, YSCALE, angles[k], store);
+				expected[PauseAngleSweep.RUNS] += store.numRuns();
+				for (int i=0; i<store.numSegments(); i++) {
+					switch (store.phase(i)) {
+						case TraceAnalysis.GROWTH:
+							expected[PauseAngleSweep.GROWTH_SEGMENTS]++;
+							expected[PauseAngleSweep.GROWTH_TIME] += store.time(i);
+							expected[PauseAngleSweep.GROWTH_DIST] += store.dist(i);
+							break;
+						case TraceAnalysis.SHRINK:
+							expected[PauseAngleSweep.SHRINK_SEGMENTS]++;
+							expected[PauseAngleSweep.SHRINK_TIME] += store.time(i);
+							expected[PauseAngleSweep.SHRINK_DIST] += store.dist(i);
+							break;
+						case TraceAnalysis.PAUSE:
+							expected[PauseAngleSweep.PAUSE_SEGMENTS]++;
+							expected[PauseAngleSweep.PAUSE_TIME] += store.time(i);
+							break;
+						default:
+							expected[PauseAngleSweep.UNDEFINED_SEGMENTS]++;
+					}
+				}
+				for (int q=0; q<store.numRuns(); q++) {
+					expected[PauseAngleSweep.CATASTROPHES] += store.run(q, TraceAnalysis.NUMCAT);
+					expected[PauseAngleSweep.RESCUES] += store.run(q, TraceAnalysis.NUMRES);
+				}
+			}
+			for (int field=0; field<expected.length; field++) {
+				assertEquals("angle " + angles[k] + ", field " + field, expected[field], sweep.total(k, field),
+					1e-9 * Math.max(1, Math.abs(expected[field])));
+			}
+		}
+	}
+}
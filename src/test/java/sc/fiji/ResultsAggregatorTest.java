@@ -0,0 +1,152 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * ResultsAggregatorTest.java
+ * Purpose: check that aggregating a csv file in many chunks on many threads, or the same traces in the column
+ * format, gives the statistics of reading the csv file in one piece.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class ResultsAggregatorTest {
+
+
+	private static final String[] LABELS = {"500 nM SPR1-GFP_1.tif", "100 nM SPR1-GFP_2.tif", "control_3.tif"};
+
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	@Test
+	public void chunksAndColumnsMatchWholeFile() throws IOException {
+		File csv = folder.newFile("results.csv");
+		File columns = new File(folder.newFolder(), "results" + ResultsColumns.EXTENSION);
+		writeTraces(csv, columns, 3000);
+
+		Map<String, ResultsAggregator.Group> whole = new ResultsAggregator(null).aggregate(
+			Collections.singletonList(csv), 1);
+		assertEquals(LABELS.length, whole.size());
+
+		ResultsAggregator chunked = new ResultsAggregator(null);
+		chunked.chunk = 4096;
+		assertGroups(whole, chunked.aggregate(Collections.singletonList(csv), 4));
+		assertTrue(chunked.skipped().isEmpty());
+
+		assertGroups(whole, new ResultsAggregator(null).aggregate(Collections.singletonList(columns), 2));
+	}
+
+	@Test
+	public void unreadableFileIsSkipped() throws IOException {
+		File csv = folder.newFile("results.csv");
+		File columns = new File(folder.newFolder(), "results" + ResultsColumns.EXTENSION);
+		writeTraces(csv, columns, 100);
+		File broken = folder.newFile("broken" + ResultsColumns.EXTENSION);
+		try (FileOutputStream out = new FileOutputStream(broken)) {
+			out.write("not a results file".getBytes("US-ASCII"));
+		}
+
+		ResultsAggregator aggregator = new ResultsAggregator(null);
+		Map<String, ResultsAggregator.Group> groups = aggregator.aggregate(Arrays.asList(broken, csv), 2);
+		assertEquals(Collections.singleton(broken), aggregator.skipped().keySet());
+		assertGroups(new ResultsAggregator(null).aggregate(Collections.singletonList(csv), 1), groups);
+	}
+
+	@Test
+	public void tornRowIsDroppedByNextAppend() throws IOException {
+		File csv = folder.newFile("results.csv");
+		File columns = new File(folder.newFolder(), "results" + ResultsColumns.EXTENSION);
+		writeTraces(csv, columns, 20);
+		Map<String, ResultsAggregator.Group> expected = new ResultsAggregator(null).aggregate(
+			Collections.singletonList(csv), 1);
+		byte[] rows = Files.readAllBytes(csv.toPath());
+		// the first row of the first trace, which carries its run summary
+		int start = rows.length;
+		for (int i=0; i<rows.length; i++) {
+			if (rows[i] == '\n') {
+				start = i + 1;
+				break;
+			}
+		}
+		int end = start;
+		while (rows[end] != '\n') end++;
+
+		File torn = folder.newFile("torn.csv");
+		for (int cut=start+1; cut<end; cut++) {
+			// the row was torn at cut, then other rows were appended
+			try (FileOutputStream out = new FileOutputStream(torn)) {
+				out.write(rows, 0, start);
+				out.write(rows, start, cut - start);
+			}
+			ResultsCsv.appendTo(torn, new String(rows, start, rows.length - start, Charset.defaultCharset()));
+			assertGroups(expected, new ResultsAggregator(null).aggregate(Collections.singletonList(torn), 1));
+		}
+	}
+
+	/**
+	 * Write the same random traces as a csv file and as a column file.
+	 */
+	private static void writeTraces(File csv, File columns, int traces) throws IOException {
+		SplittableRandom r = new SplittableRandom(3);
+		SegmentStore store = new SegmentStore();
+		ResultsColumns.Builder builder = new ResultsColumns.Builder();
+		StringBuilder o = new StringBuilder(ResultsCsv.HEADER).append('\n');
+		for (int t=0; t<traces; t++) {
+			int n = 3 + r.nextInt(10);
+			int[] x = new int[n];
+			int[] y = new int[n];
+			x[0] = 50;
+			for (int i=1; i<n; i++) {
+				x[i] = x[i-1] + r.nextInt(-8, 9);
+				y[i] = y[i-1] + 1 + r.nextInt(20);
+			}
+			TraceAnalysis.analyze(x, y, n, TraceAnalysis.RIGHT, 0.08, 2.5, 3, store);
+			String label = LABELS[t % LABELS.length];
+			ResultsCsv.appendTrace(o, label, store);
+			builder.add(label, store);
+		}
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(csv), Charset.defaultCharset())) {
+			w.append(o);
+		}
+		builder.appendTo(columns);
+	}
+
+	private static void assertGroups(Map<String, ResultsAggregator.Group> expected,
+		Map<String, ResultsAggregator.Group> actual) {
+		assertEquals(expected.keySet(), actual.keySet());
+		for (String label : expected.keySet()) {
+			ResultsAggregator.Group e = expected.get(label);
+			ResultsAggregator.Group a = actual.get(label);
+			assertEquals(label, e.traces(), a.traces());
+			assertEquals(label, e.growthRate(), a.growthRate(), 1e-9 * Math.abs(e.growthRate()));
+			assertEquals(label, e.shrinkRate(), a.shrinkRate(), 1e-9 * Math.abs(e.shrinkRate()));
+			assertEquals(label, e.catastropheFrequency(), a.catastropheFrequency(),
+				1e-9 * Math.abs(e.catastropheFrequency()));
+			assertEquals(label, e.rescueFrequency(), a.rescueFrequency(), 1e-9 * Math.abs(e.rescueFrequency()));
+		}
+	}
+}
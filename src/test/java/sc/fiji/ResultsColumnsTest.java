@@ -0,0 +1,137 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * ResultsColumnsTest.java
+ * Purpose: check that the segments and runs written as column blocks are read back as they were analyzed, and that
+ * a block torn by a producer that died is dropped by the next append.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class ResultsColumnsTest {
+
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	@Test
+	public void blocksRoundTrip() throws IOException {
+		File file = new File(folder.getRoot(), "results" + ResultsColumns.EXTENSION);
+		SplittableRandom r = new SplittableRandom(4);
+		List<List<SegmentStore>> blocks = new ArrayList<List<SegmentStore>>();
+		List<List<String>> labels = new ArrayList<List<String>>();
+		for (int b=0; b<3; b++) {
+			ResultsColumns.Builder builder = new ResultsColumns.Builder();
+			blocks.add(new ArrayList<SegmentStore>());
+			labels.add(new ArrayList<String>());
+			for (int t=0; t<50; t++) {
+				SegmentStore store = randomTrace(r);
+				String label = "kymograph_" + r.nextInt(5) + ".tif";
+				builder.add(label, store);
+				blocks.get(b).add(store);
+				labels.get(b).add(label);
+			}
+			builder.appendTo(file);
+		}
+		assertBlocks(file, blocks, labels);
+	}
+
+	@Test
+	public void tornBlockIsDropped() throws IOException {
+		File file = new File(folder.getRoot(), "results" + ResultsColumns.EXTENSION);
+		SplittableRandom r = new SplittableRandom(5);
+		List<List<SegmentStore>> blocks = new ArrayList<List<SegmentStore>>();
+		List<List<String>> labels = new ArrayList<List<String>>();
+		for (int b=0; b<3; b++) {
+			ResultsColumns.Builder builder = new ResultsColumns.Builder();
+			List<SegmentStore> stores = new ArrayList<SegmentStore>();
+			List<String> names = new ArrayList<String>();
+			for (int t=0; t<20; t++) {
+				SegmentStore store = randomTrace(r);
+				builder.add("trace.tif", store);
+				stores.add(store);
+				names.add("trace.tif");
+			}
+			if (b == 1) {
+				// the producer of the second block dies halfway through
+				ByteBuffer block = builder.encode();
+				try (FileOutputStream out = new FileOutputStream(file, true)) {
+					out.write(block.array(), block.arrayOffset() + block.position(), block.remaining() / 2);
+				}
+				continue;
+			}
+			builder.appendTo(file);
+			blocks.add(stores);
+			labels.add(names);
+		}
+		assertBlocks(file, blocks, labels);
+	}
+
+	private static SegmentStore randomTrace(SplittableRandom r) {
+		int n = 2 + r.nextInt(15);
+		int[] x = new int[n];
+		int[] y = new int[n];
+		x[0] = 100;
+		for (int i=1; i<n; i++) {
+			x[i] = x[i-1] + r.nextInt(-10, 11);
+			y[i] = y[i-1] + r.nextInt(0, 12);
+		}
+		SegmentStore store = new SegmentStore();
+		TraceAnalysis.analyze(x, y, n, TraceAnalysis.RIGHT, 0.08, 2.5, 3, store);
+		return store;
+	}
+
+	private static void assertBlocks(File file, List<List<SegmentStore>> blocks, List<List<String>> labels)
+		throws IOException {
+		try (ResultsColumns.Reader reader = ResultsColumns.open(file)) {
+			assertEquals(blocks.size(), reader.numBlocks());
+			long total = 0;
+			for (int b=0; b<blocks.size(); b++) {
+				int segment = 0;
+				int run = 0;
+				for (int t=0; t<blocks.get(b).size(); t++) {
+					SegmentStore store = blocks.get(b).get(t);
+					for (int q=0; q<store.numRuns(); q++, run++) {
+						assertEquals(segment + store.runStart(q), reader.runStart(b, run));
+						for (int f=0; f<SegmentStore.RUN_FIELDS; f++) {
+							assertEquals(store.run(q, f), reader.run(b, run, f), 0);
+						}
+					}
+					for (int i=0; i<store.numSegments(); i++, segment++) {
+						String where = "block " + b + ", trace " + t + ", segment " + i;
+						assertEquals(where, labels.get(b).get(t), reader.label(reader.labelId(b, segment)));
+						assertEquals(where, i + 1, reader.index(b, segment));
+						assertEquals(where, store.phase(i), reader.phase(b, segment));
+						assertEquals(where, store.dist(i), reader.dist(b, segment), 0);
+						assertEquals(where, store.time(i), reader.time(b, segment), 0);
+						assertEquals(where, store.rate(i), reader.rate(b, segment), 0);
+					}
+				}
+				assertEquals(segment, reader.numSegments(b));
+				assertEquals(run, reader.numRuns(b));
+				total += segment;
+			}
+			assertEquals(total, reader.totalSegments());
+		}
+	}
+}
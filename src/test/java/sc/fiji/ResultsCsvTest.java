@@ -0,0 +1,68 @@
+/* This project is licensed under the GNU General Public License v3 (GPLv3).
+ * A copy of the license can be found at the following link: <https://www.gnu.org/licenses/gpl-3.0.en.html>
+ */
+
+package sc.fiji;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.SplittableRandom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * ResultsCsvTest.java
+ * Purpose: check that rows appended in encoded chunks give the bytes of encoding them whole.
+ *
+ * @author Han Liu
+ * @version v1.0
+ */
+public class ResultsCsvTest {
+
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	@Test
+	public void chunkedAppendMatchesWholeEncoding() throws IOException {
+		SplittableRandom r = new SplittableRandom(8);
+		SegmentStore store = new SegmentStore();
+		StringBuilder rows = new StringBuilder();
+		while (rows.length() < 300000) {
+			int n = 2 + r.nextInt(20);
+			int[] x = new int[n];
+			int[] y = new int[n];
+			for (int i=1; i<n; i++) {
+				x[i] = x[i-1] + r.nextInt(-10, 11);
+				y[i] = y[i-1] + 1 + r.nextInt(10);
+			}
+			TraceAnalysis.analyze(x, y, n, TraceAnalysis.LEFT, 0.08, 2.5, 3, store);
+			// a label the default charset may not encode
+			ResultsCsv.appendTrace(rows, "1 µM tubulin 一.tif", store);
+		}
+		File file = new File(folder.getRoot(), "results.csv");
+		ResultsCsv.appendTo(file, rows);
+		ResultsCsv.appendTo(file, rows);
+
+		Charset charset = Charset.defaultCharset();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		write(expected, charset.encode(ResultsCsv.HEADER + System.lineSeparator()));
+		write(expected, charset.encode(rows.toString()));
+		write(expected, charset.encode(rows.toString()));
+		assertArrayEquals(expected.toByteArray(), Files.readAllBytes(file.toPath()));
+	}
+
+	private static void write(ByteArrayOutputStream out, ByteBuffer b) {
+		out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+	}
+}